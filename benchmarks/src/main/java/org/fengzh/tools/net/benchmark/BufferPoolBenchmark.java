@@ -0,0 +1,58 @@
+package org.fengzh.tools.net.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.fengzh.tools.net.core.BufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of getting a buffer from the {@link BufferPool} compared with plain
+ * direct and heap allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-XX:MaxDirectMemorySize=1g")
+public class BufferPoolBenchmark {
+
+	@Param({ Payloads.SMALL, Payloads.MEDIUM, Payloads.LARGE })
+	public int bufferSize;
+
+	private BufferPool pool;
+
+	@Setup
+	public void setUp() {
+		pool = new BufferPool(1024, 32);
+	}
+
+	@Benchmark
+	public int pooled() {
+		ByteBuffer buffer = pool.acquire(bufferSize);
+		int capacity = buffer.capacity();
+		pool.release(buffer);
+		return capacity;
+	}
+
+	@Benchmark
+	public ByteBuffer allocateDirect() {
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	@Benchmark
+	public ByteBuffer allocateHeap() {
+		return ByteBuffer.allocate(bufferSize);
+	}
+}
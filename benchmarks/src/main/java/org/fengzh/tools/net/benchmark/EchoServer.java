@@ -0,0 +1,82 @@
+package org.fengzh.tools.net.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.fengzh.tools.net.core.ChannelHandler;
+import org.fengzh.tools.net.core.EventLoop;
+import org.fengzh.tools.net.core.EventLoopGroup;
+import org.fengzh.tools.net.core.EventLoopGroup.AcceptHandler;
+
+/**
+ * Loopback echo server on its own event loop, the backend of all network
+ * benchmarks so they never leave the host.
+ */
+public class EchoServer implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final EventLoopGroup group;
+
+	private final ServerSocketChannel serverChannel;
+
+	public EchoServer() throws IOException {
+		this(new InetSocketAddress("127.0.0.1", 0));
+	}
+
+	public EchoServer(InetSocketAddress address) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(address, 1024);
+		group = new EventLoopGroup("echo-" + getAddress().getAddress().getHostAddress(), 1);
+		group.bind(serverChannel, new AcceptHandler() {
+
+			public void accepted(SocketChannel channel, EventLoop loop) throws IOException {
+				channel.socket().setTcpNoDelay(true);
+				channel.register(loop.getSelector(), SelectionKey.OP_READ, new Echo());
+			}
+		});
+		group.start();
+	}
+
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+	}
+
+	public void close() throws IOException {
+		group.close();
+		serverChannel.close();
+	}
+
+	private static class Echo implements ChannelHandler {
+
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		public void onProcessing(SelectionKey key) throws IOException {
+			SocketChannel channel = (SocketChannel) key.channel();
+			try {
+				if (key.isReadable()) {
+					if (channel.read(buffer) < 0) {
+						key.cancel();
+						channel.close();
+						return;
+					}
+				}
+				buffer.flip();
+				channel.write(buffer);
+				boolean pending = buffer.hasRemaining();
+				buffer.compact();
+				// stop reading until the echo is flushed
+				key.interestOps(pending ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			} catch (IOException e) {
+				key.cancel();
+				channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.fengzh.tools.net.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.fengzh.tools.net.core.ChannelExchange;
+import org.fengzh.tools.net.core.EventLoop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loopback throughput through one {@link ChannelExchange} pair:
+ * client -&gt; exchange -&gt; echo server -&gt; exchange -&gt; client. Each
+ * operation is one payload round trip, multiply ops/s by the payload size
+ * for bytes/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExchangeThroughputBenchmark {
+
+	@Param({ Payloads.SMALL, Payloads.MEDIUM, Payloads.LARGE })
+	public int payloadSize;
+
+	private EchoServer echoServer;
+
+	private EventLoop loop;
+
+	private SocketChannel client;
+
+	private Selector selector;
+
+	private ByteBuffer payload;
+
+	private ByteBuffer receive;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		echoServer = new EchoServer();
+		loop = new EventLoop("exchange");
+		loop.start();
+
+		ServerSocketChannel front = ServerSocketChannel.open();
+		try {
+			front.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+			client = Payloads.connect((InetSocketAddress) front.socket().getLocalSocketAddress());
+			final SocketChannel local = front.accept();
+			local.socket().setTcpNoDelay(true);
+			final SocketChannel remote = Payloads.connect(echoServer.getAddress());
+			final CountDownLatch registered = new CountDownLatch(1);
+			final AtomicReference<IOException> error = new AtomicReference<IOException>();
+			loop.execute(new Runnable() {
+
+				public void run() {
+					try {
+						new ChannelExchange(local, remote, loop);
+					} catch (IOException e) {
+						error.set(e);
+					}
+					registered.countDown();
+				}
+			});
+			registered.await();
+			if (error.get() != null) {
+				throw error.get();
+			}
+		} finally {
+			front.close();
+		}
+
+		selector = Selector.open();
+		payload = Payloads.create(payloadSize);
+		receive = ByteBuffer.allocateDirect(64 * 1024);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		client.close();
+		selector.close();
+		loop.shutdown();
+		echoServer.close();
+	}
+
+	@Benchmark
+	public long roundTrip() throws IOException {
+		return Payloads.roundTrip(client, selector, payload, receive);
+	}
+}
@@ -0,0 +1,93 @@
+package org.fengzh.tools.net.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.fengzh.tools.net.core.ChannelForward;
+import org.fengzh.tools.net.core.EventLoop;
+import org.fengzh.tools.net.core.EventLoopGroup;
+import org.fengzh.tools.net.core.EventLoopGroup.AcceptHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Connection setup rate through {@link ChannelForward}: accept, connect to
+ * the echo server, exchange one byte and close. Clients close with linger 0
+ * so the run is not limited by TIME_WAIT ports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ForwardConnectBenchmark {
+
+	private EchoServer echoServer;
+
+	private EventLoopGroup group;
+
+	private ServerSocketChannel serverChannel;
+
+	private InetSocketAddress forwardAddress;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		echoServer = new EchoServer();
+		final InetSocketAddress echoAddress = echoServer.getAddress();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+		forwardAddress = (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+		group = new EventLoopGroup("forward");
+		group.bind(serverChannel, new AcceptHandler() {
+
+			public void accepted(SocketChannel channel, EventLoop loop) throws IOException {
+				ChannelForward forward = new ChannelForward(channel);
+				forward.setAddress(echoAddress);
+				forward.startForward(loop);
+			}
+		});
+		group.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		group.close();
+		serverChannel.close();
+		echoServer.close();
+	}
+
+	@Benchmark
+	public int connect() throws IOException {
+		SocketChannel channel = Payloads.connect(forwardAddress);
+		try {
+			channel.socket().setSoLinger(true, 0);
+			ByteBuffer buffer = ByteBuffer.allocate(1);
+			buffer.put((byte) 1).flip();
+			channel.write(buffer);
+			buffer.clear();
+			int n = channel.read(buffer);
+			if (n != 1) {
+				throw new IOException("Unexpected echo: " + n);
+			}
+			return buffer.get(0);
+		} finally {
+			channel.close();
+		}
+	}
+}
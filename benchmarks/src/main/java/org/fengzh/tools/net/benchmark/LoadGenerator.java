@@ -0,0 +1,408 @@
+package org.fengzh.tools.net.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.fengzh.tools.net.core.ChannelHandler;
+import org.fengzh.tools.net.core.EventLoop;
+import org.fengzh.tools.net.core.EventLoopGroup;
+import org.fengzh.tools.net.core.LatencyHistogram;
+import org.fengzh.tools.net.portforward.PortForwardServer;
+
+/**
+ * Soak test of the port forwarder in one process: starts local echo backends
+ * on 127.0.0.2, 127.0.0.3, ..., a {@link PortForwardServer} on 127.0.0.1 in
+ * front of them and keeps the configured number of client connections busy
+ * with request/response round trips. Prints throughput and latency every
+ * report interval, and at the end the file descriptors and selector keys
+ * which are still open after all clients are gone.
+ * <p>
+ * Settings are system properties:
+ * <ul>
+ * <li>backends - count of echo backends, default 4</li>
+ * <li>clients - concurrent client connections, default 1000</li>
+ * <li>payloads - request sizes used in turn, default 1024,65536,1048576</li>
+ * <li>requestsPerConnection - round trips before reconnecting, default 1</li>
+ * <li>duration - seconds to run, default 60</li>
+ * <li>rampUp - seconds over which the clients are started, default 5</li>
+ * <li>reportInterval - seconds between reports, default 10</li>
+ * <li>clientThreads - client event loops, default 2</li>
+ * <li>port - forwarded port, default 19000</li>
+ * </ul>
+ * Forwarder settings (engine, ioThreads, bufferSize, connectTimeout, ...)
+ * are read from system properties as usual.
+ *
+ * <pre>
+ * java -Dclients=5000 -Dduration=3600 -cp benchmarks.jar org.fengzh.tools.net.benchmark.LoadGenerator
+ * </pre>
+ */
+public class LoadGenerator {
+
+	private static final int RECEIVE_BUFFER = 64 * 1024;
+
+	private final int backendCount = Integer.getInteger("backends", 4);
+
+	private final int clientCount = Integer.getInteger("clients", 1000);
+
+	private final int requestsPerConnection = Integer.getInteger("requestsPerConnection", 1);
+
+	private final int duration = Integer.getInteger("duration", 60);
+
+	private final int rampUp = Integer.getInteger("rampUp", 5);
+
+	private final int reportInterval = Integer.getInteger("reportInterval", 10);
+
+	private final int clientThreads = Integer.getInteger("clientThreads", 2);
+
+	private final int port = Integer.getInteger("port", 19000);
+
+	private final ByteBuffer[] payloads;
+
+	private final List<EchoServer> backends = new ArrayList<EchoServer>();
+
+	private PortForwardServer server;
+
+	private EventLoopGroup clientGroup;
+
+	private InetSocketAddress serverAddress;
+
+	private volatile boolean running = true;
+
+	private final AtomicInteger activeClients = new AtomicInteger();
+
+	private final AtomicInteger payloadIndex = new AtomicInteger();
+
+	private final LongAdder connections = new LongAdder();
+
+	private final LongAdder requests = new LongAdder();
+
+	private final LongAdder bytes = new LongAdder();
+
+	private final LongAdder errors = new LongAdder();
+
+	private final LatencyHistogram connectTime = new LatencyHistogram(null, Long.MAX_VALUE);
+
+	private final LatencyHistogram totalLatency = new LatencyHistogram(null, Long.MAX_VALUE);
+
+	private final LatencyHistogram latency;
+
+	private final ThreadLocal<ByteBuffer> receiveBuffer = new ThreadLocal<ByteBuffer>() {
+
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(RECEIVE_BUFFER);
+		}
+	};
+
+	public LoadGenerator() {
+		String[] sizes = System.getProperty("payloads", "1024,65536,1048576").split(",");
+		payloads = new ByteBuffer[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			payloads[i] = Payloads.create(Integer.parseInt(sizes[i].trim()));
+		}
+		latency = new LatencyHistogram(totalLatency, TimeUnit.SECONDS.toNanos(reportInterval));
+	}
+
+	public static void main(String[] args) throws Exception {
+		new LoadGenerator().run();
+	}
+
+	public void run() throws Exception {
+		for (int i = 0; i < backendCount; i++) {
+			backends.add(new EchoServer(new InetSocketAddress("127.0.0." + (i + 2), port)));
+		}
+		String[] hosts = new String[backendCount];
+		for (int i = 0; i < backendCount; i++) {
+			hosts[i] = "127.0.0." + (i + 2);
+		}
+		long baseFds = openFileDescriptors();
+		server = new PortForwardServer(hosts, port, port);
+		server.start();
+		serverAddress = server.getLocalAddress();
+		// let the loops settle before taking the baseline
+		Thread.sleep(500);
+		int baseKeys = serverKeys();
+		System.out.println("Forwarding " + serverAddress + " to " + backendCount + " backends, " + clientCount
+				+ " clients, payloads " + System.getProperty("payloads", "1024,65536,1048576") + ", "
+				+ duration + "s");
+
+		clientGroup = new EventLoopGroup("loadgen", clientThreads);
+		clientGroup.start();
+		for (int i = 0; i < clientCount; i++) {
+			final EventLoop loop = clientGroup.next();
+			final long delay = TimeUnit.SECONDS.toMillis(rampUp) * i / clientCount;
+			loop.execute(new Runnable() {
+
+				public void run() {
+					loop.schedule(new Runnable() {
+
+						public void run() {
+							new Client(loop).open();
+						}
+					}, delay);
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(duration);
+		long last = start;
+		long lastConnections = 0;
+		long lastBytes = 0;
+		long lastRequests = 0;
+		while (System.nanoTime() < end) {
+			Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(reportInterval),
+					TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()) + 1));
+			long now = System.nanoTime();
+			double seconds = (now - last) / 1e9;
+			long c = connections.sum();
+			long b = bytes.sum();
+			long r = requests.sum();
+			System.out.println(String.format(
+					"%6ds conn/s %9.1f  req/s %9.1f  MB/s %8.2f  p50 %8.3fms  p99 %8.3fms  p99.9 %8.3fms"
+							+ "  active %5d  errors %d", TimeUnit.NANOSECONDS.toSeconds(now - start),
+					(c - lastConnections) / seconds, (r - lastRequests) / seconds, (b - lastBytes) / seconds
+							/ (1024 * 1024), latency.getPercentile(50), latency.getPercentile(99),
+					latency.getPercentile(99.9), activeClients.get(), errors.sum()));
+			last = now;
+			lastConnections = c;
+			lastBytes = b;
+			lastRequests = r;
+		}
+
+		// clients close after their current round trip
+		running = false;
+		long stopDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (activeClients.get() > 0 && System.nanoTime() < stopDeadline) {
+			Thread.sleep(100);
+		}
+		int stuck = activeClients.get();
+		clientGroup.close();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		// give the forwarder time to see the closes
+		Thread.sleep(2000);
+
+		System.out.println("---- summary ----");
+		System.out.println(String.format("connections %d (%.1f/s), requests %d (%.1f/s), %.2f MB/s, errors %d",
+				connections.sum(), connections.sum() / seconds, requests.sum(), requests.sum() / seconds,
+				bytes.sum() / seconds / (1024 * 1024), errors.sum()));
+		System.out.println(String.format("connect   p50 %.3fms  p99 %.3fms  p99.9 %.3fms  max %.3fms",
+				connectTime.getPercentile(50), connectTime.getPercentile(99), connectTime.getPercentile(99.9),
+				connectTime.getMax()));
+		System.out.println(String.format("roundtrip p50 %.3fms  p99 %.3fms  p99.9 %.3fms  max %.3fms",
+				totalLatency.getPercentile(50), totalLatency.getPercentile(99), totalLatency.getPercentile(99.9),
+				totalLatency.getMax()));
+		printServerMetrics();
+		System.out.println("clients not finished " + stuck);
+		System.out.println("leaked selector keys " + (baseKeys < 0 ? "n/a" : Integer.toString(serverKeys() - baseKeys)));
+
+		// channels not closed by the forwarder itself remain open after it is stopped
+		server.close();
+		Thread.sleep(1000);
+		long fds = openFileDescriptors();
+		System.out.println("leaked file descriptors " + (fds < 0 ? "unknown" : Long.toString(fds - baseFds)));
+		for (EchoServer backend : backends) {
+			backend.close();
+		}
+	}
+
+	private void printServerMetrics() {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = ObjectName.getInstance(PortForwardServer.class.getPackage().getName()
+					+ ":type=ServerWorker,name=" + serverAddress.getPort());
+			System.out.println("forwarder accepted " + mbeanServer.getAttribute(name, "AcceptedConnections")
+					+ ", failed " + mbeanServer.getAttribute(name, "FailedConnections") + ", active "
+					+ mbeanServer.getAttribute(name, "ActiveConnections"));
+			System.out.println("accept batches " + mbeanServer.getAttribute(name, "AcceptBatches") + ", average "
+					+ String.format("%.2f", mbeanServer.getAttribute(name, "AverageAcceptBatch")) + ", max "
+					+ mbeanServer.getAttribute(name, "MaxAcceptBatch") + ", budget exhausted "
+					+ mbeanServer.getAttribute(name, "AcceptBudgetExhausted") + " ["
+					+ mbeanServer.getAttribute(name, "AcceptBatchSizes") + "]");
+			for (String state : (String[]) mbeanServer.getAttribute(name, "BackendStates")) {
+				System.out.println("  " + state);
+			}
+			for (ObjectName backend : mbeanServer.queryNames(ObjectName.getInstance(name.getDomain()
+					+ ":type=Backend,listener=" + serverAddress.getPort() + ",*"), null)) {
+				System.out.println("  backend " + ObjectName.unquote(backend.getKeyProperty("name")) + " accepted "
+						+ mbeanServer.getAttribute(backend, "AcceptedConnections") + ", failed "
+						+ mbeanServer.getAttribute(backend, "FailedConnections") + ", connect p99 "
+						+ mbeanServer.getAttribute(backend, "ConnectTimeP99") + "ms");
+			}
+		} catch (Exception e) {
+			System.out.println("forwarder metrics not available: " + e);
+		}
+	}
+
+	/**
+	 * @return keys registered by the forwarder, -1 if it does not run on
+	 *         selectors
+	 */
+	private int serverKeys() {
+		EventLoopGroup group = server.getEventLoopGroup();
+		if (group == null) {
+			return -1;
+		}
+		int keys = 0;
+		for (int i = 0; i < group.size(); i++) {
+			keys += group.get(i).getSelector().keys().size();
+		}
+		return keys;
+	}
+
+	private static long openFileDescriptors() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+			return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+		}
+		String[] fds = new File("/proc/self/fd").list();
+		return fds == null ? -1 : fds.length;
+	}
+
+	/**
+	 * One client connection, sends a payload and waits for the whole echo
+	 * before the next round trip.
+	 */
+	private class Client implements ChannelHandler {
+
+		private final EventLoop loop;
+
+		private SocketChannel channel;
+
+		private SelectionKey key;
+
+		private ByteBuffer out;
+
+		private long expected;
+
+		private long received;
+
+		private int done;
+
+		private long started;
+
+		Client(EventLoop loop) {
+			this.loop = loop;
+		}
+
+		void open() {
+			if (!running) {
+				return;
+			}
+			activeClients.incrementAndGet();
+			done = 0;
+			started = System.nanoTime();
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+				if (channel.connect(serverAddress)) {
+					connected();
+				}
+			} catch (IOException e) {
+				failed();
+			}
+		}
+
+		public void onProcessing(SelectionKey key) throws IOException {
+			try {
+				if (key.isConnectable()) {
+					if (channel.finishConnect()) {
+						connected();
+					}
+				} else {
+					transfer();
+				}
+			} catch (IOException e) {
+				failed();
+			}
+		}
+
+		private void connected() throws IOException {
+			connectTime.recordNanos(System.nanoTime() - started);
+			connections.increment();
+			startRequest();
+		}
+
+		private void startRequest() throws IOException {
+			ByteBuffer payload = payloads[(payloadIndex.getAndIncrement() & Integer.MAX_VALUE) % payloads.length];
+			out = payload.duplicate();
+			expected = out.remaining();
+			received = 0;
+			started = System.nanoTime();
+			transfer();
+		}
+
+		private void transfer() throws IOException {
+			if (out.hasRemaining()) {
+				channel.write(out);
+			}
+			ByteBuffer buffer = receiveBuffer.get();
+			int n;
+			do {
+				buffer.clear();
+				n = channel.read(buffer);
+				if (n < 0) {
+					throw new IOException("Closed by forwarder");
+				}
+				received += n;
+				bytes.add(n);
+			} while (n == RECEIVE_BUFFER);
+			if (received >= expected) {
+				latency.recordNanos(System.nanoTime() - started);
+				requests.increment();
+				if (++done < requestsPerConnection && running) {
+					startRequest();
+				} else {
+					close();
+					open();
+				}
+				return;
+			}
+			key.interestOps(out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+					: SelectionKey.OP_READ);
+		}
+
+		private void failed() {
+			errors.increment();
+			close();
+			// back off, failures are usually caused by fd or port exhaustion
+			loop.schedule(new Runnable() {
+
+				public void run() {
+					open();
+				}
+			}, 100);
+		}
+
+		private void close() {
+			if (key != null) {
+				key.cancel();
+				key = null;
+			}
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException ignored) {
+			}
+			channel = null;
+			activeClients.decrementAndGet();
+		}
+	}
+}
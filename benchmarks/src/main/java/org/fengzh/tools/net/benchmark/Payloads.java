@@ -0,0 +1,83 @@
+package org.fengzh.tools.net.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client side helpers shared by the benchmarks.
+ */
+final class Payloads {
+
+	/**
+	 * Payload profiles: 1 KB, 64 KB and 1 MB.
+	 */
+	static final String SMALL = "1024";
+
+	static final String MEDIUM = "65536";
+
+	static final String LARGE = "1048576";
+
+	private Payloads() {
+	}
+
+	static ByteBuffer create(int size) {
+		ByteBuffer payload = ByteBuffer.allocateDirect(size);
+		for (int i = 0; i < size; i++) {
+			payload.put((byte) i);
+		}
+		payload.flip();
+		return payload;
+	}
+
+	static SocketChannel connect(InetSocketAddress address) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		channel.socket().setTcpNoDelay(true);
+		channel.connect(address);
+		return channel;
+	}
+
+	/**
+	 * Sends the payload and reads back as many bytes. Writing and reading are
+	 * interleaved on a non-blocking channel, so payloads larger than the
+	 * socket buffers cannot dead lock against the echo.
+	 *
+	 * @return bytes read back
+	 */
+	static long roundTrip(SocketChannel channel, Selector selector, ByteBuffer payload, ByteBuffer receive)
+			throws IOException {
+		int size = payload.remaining();
+		SelectionKey key = channel.keyFor(selector);
+		if (key == null) {
+			channel.configureBlocking(false);
+			key = channel.register(selector, 0);
+		}
+		ByteBuffer out = payload.duplicate();
+		long received = 0;
+		while (received < size) {
+			boolean progress = false;
+			if (out.hasRemaining() && channel.write(out) > 0) {
+				progress = true;
+			}
+			receive.clear();
+			int n = channel.read(receive);
+			if (n < 0) {
+				throw new IOException("Connection closed after " + received + " of " + size + " bytes");
+			}
+			if (n > 0) {
+				received += n;
+				progress = true;
+			}
+			if (!progress) {
+				key.interestOps(out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+						: SelectionKey.OP_READ);
+				selector.select();
+				selector.selectedKeys().clear();
+			}
+		}
+		return received;
+	}
+}
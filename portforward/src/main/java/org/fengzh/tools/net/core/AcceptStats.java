@@ -0,0 +1,98 @@
+package org.fengzh.tools.net.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sizes of accept batches, the connections accepted in one selector wakeup.
+ * Batches are counted in power of two buckets: 1, 2-3, 4-7 ... 128+.
+ */
+public class AcceptStats {
+
+	private static final int BUCKETS = 8;
+
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder exhausted = new LongAdder();
+	private final AtomicLongArray sizes = new AtomicLongArray(BUCKETS);
+	private final AtomicInteger maxBatch = new AtomicInteger();
+
+	/**
+	 * @param batch
+	 *            connections accepted in one wakeup, empty wakeups count too
+	 * @param budgetExhausted
+	 *            <code>true</code> if accepting stopped at the budget with
+	 *            maybe more connections in the backlog
+	 */
+	public void record(int batch, boolean budgetExhausted) {
+		batches.increment();
+		accepted.add(batch);
+		if (budgetExhausted) {
+			exhausted.increment();
+		}
+		if (batch > 0) {
+			sizes.incrementAndGet(Math.min(31 - Integer.numberOfLeadingZeros(batch), BUCKETS - 1));
+		}
+		int max;
+		while (batch > (max = maxBatch.get())) {
+			if (maxBatch.compareAndSet(max, batch))
+				break;
+		}
+	}
+
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	public long getAccepted() {
+		return accepted.sum();
+	}
+
+	public double getAverageBatch() {
+		long count = batches.sum();
+		return count == 0 ? 0 : (double) accepted.sum() / count;
+	}
+
+	public int getMaxBatch() {
+		return maxBatch.get();
+	}
+
+	/**
+	 * @return wakeups which stopped at the budget
+	 */
+	public long getBudgetExhausted() {
+		return exhausted.sum();
+	}
+
+	/**
+	 * @return batch count per size bucket, like "1:120 2-3:40 4-7:3"
+	 */
+	public String getBatchSizes() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = sizes.get(i);
+			if (count == 0)
+				continue;
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			int low = 1 << i;
+			if (i == 0) {
+				sb.append(1);
+			} else if (i == BUCKETS - 1) {
+				sb.append(low).append('+');
+			} else {
+				sb.append(low).append('-').append(2 * low - 1);
+			}
+			sb.append(':').append(count);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "accepted " + getAccepted() + " in " + getBatches() + " batches, max " + getMaxBatch()
+				+ ", budget exhausted " + getBudgetExhausted() + " [" + getBatchSizes() + "]";
+	}
+}
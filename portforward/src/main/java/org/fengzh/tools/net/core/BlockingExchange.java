@@ -0,0 +1,147 @@
+package org.fengzh.tools.net.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Blocking counterpart of {@link ChannelExchange}: each direction is copied
+ * on its own virtual thread. Closing semantics, idle timeout and metrics are
+ * the same as for the selector engine.
+ */
+public class BlockingExchange implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(BlockingExchange.class.getName());
+
+	private final SocketChannel local;
+	private final SocketChannel remote;
+	private final ChannelOptions options;
+	private final TrafficMetrics metrics;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final long openedNanos = System.nanoTime();
+	private final long idleNanos;
+	private volatile long lastActivity = openedNanos;
+	private VirtualThreadEngine engine;
+
+	/**
+	 * Traffic of the pair is counted in the metrics if it is not
+	 * <code>null</code>.
+	 */
+	public BlockingExchange(SocketChannel local, SocketChannel remote, ChannelOptions options, TrafficMetrics metrics)
+			throws IOException {
+		this.local = local;
+		this.remote = remote;
+		this.options = options;
+		this.metrics = metrics;
+		this.idleNanos = TimeUnit.SECONDS.toNanos(options.getIdleTimeout());
+		local.configureBlocking(true);
+		remote.configureBlocking(true);
+		// wake up readers to check whether the pair is idle
+		int timeout = options.getIdleTimeout() * 1000;
+		local.socket().setSoTimeout(timeout);
+		remote.socket().setSoTimeout(timeout);
+		if (metrics != null) {
+			metrics.connectionOpened();
+		}
+	}
+
+	public void start(VirtualThreadEngine engine) {
+		this.engine = engine;
+		engine.opened(this);
+		engine.execute(new Runnable() {
+
+			public void run() {
+				copy(local, remote, metrics == null ? null : metrics.getBytesSentMeter(), false);
+			}
+		});
+		engine.execute(new Runnable() {
+
+			public void run() {
+				copy(remote, local, metrics == null ? null : metrics.getBytesReceivedMeter(), true);
+			}
+		});
+	}
+
+	private void copy(SocketChannel from, SocketChannel to, RateMeter meter, boolean fromRemote) {
+		byte[] buffer = new byte[options.getBufferSize()];
+		ByteBuffer data = ByteBuffer.wrap(buffer);
+		boolean awaitFirstByte = fromRemote && metrics != null;
+		try {
+			// socket stream honors SO_TIMEOUT, channel read does not
+			InputStream in = from.socket().getInputStream();
+			while (!closed.get()) {
+				int count;
+				try {
+					count = in.read(buffer);
+				} catch (SocketTimeoutException e) {
+					long idle = System.nanoTime() - lastActivity;
+					if (idle >= idleNanos) {
+						logger.info("Close idle connections after {} ms: {}", TimeUnit.NANOSECONDS.toMillis(idle),
+								local.socket().getRemoteSocketAddress());
+						break;
+					}
+					continue;
+				}
+				if (count < 0) {
+					break;
+				}
+				lastActivity = System.nanoTime();
+				if (meter != null) {
+					meter.mark(count);
+				}
+				if (awaitFirstByte) {
+					awaitFirstByte = false;
+					metrics.getFirstByteTime().recordNanos(lastActivity - openedNanos);
+				}
+				data.clear().limit(count);
+				while (data.hasRemaining()) {
+					to.write(data);
+				}
+				lastActivity = System.nanoTime();
+			}
+		} catch (IOException e) {
+			if (!closed.get()) {
+				logger.debug("Forwarding got error", e);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Closes both sides, the copying threads exit on the closed channels.
+	 */
+	public void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		if (metrics != null) {
+			metrics.connectionClosed();
+			metrics.getSessionDuration().recordNanos(System.nanoTime() - openedNanos);
+		}
+		close(local);
+		close(remote);
+		if (engine != null) {
+			engine.closed(this);
+		}
+		logger.debug("Closing forward connections...");
+	}
+
+	private static void close(Closeable closeHandler) {
+		try {
+			if (closeHandler != null) {
+				closeHandler.close();
+			}
+		} catch (IOException e) {
+			logger.debug("close error", e);
+		}
+	}
+}
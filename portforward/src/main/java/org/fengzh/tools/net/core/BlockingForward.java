@@ -0,0 +1,103 @@
+package org.fengzh.tools.net.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Blocking counterpart of {@link ChannelForward}, connects to the remote on
+ * the calling virtual thread and hands the pair to a
+ * {@link BlockingExchange}.
+ */
+public class BlockingForward implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(BlockingForward.class.getName());
+	private InetSocketAddress address;
+	private int connectTimeout = Integer.getInteger("connectTimeout", 3);
+	private SocketChannel localChannel;
+	private ChannelOptions options = new ChannelOptions();
+	private TrafficMetrics metrics;
+
+	public BlockingForward(SocketChannel local) {
+		this.localChannel = local;
+	}
+
+	public void setOptions(ChannelOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * @param metrics
+	 *            metrics of the remote address, may be <code>null</code>
+	 */
+	public void setMetrics(TrafficMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Connects to remote and starts forwarding, blocks until connected.
+	 *
+	 * @throws IOException
+	 *             if the remote cannot be connected in time, the local
+	 *             channel is kept open for another try
+	 */
+	public void startForward(VirtualThreadEngine engine) throws IOException {
+		if (metrics != null) {
+			metrics.connectionAccepted();
+		}
+		long connectStart = System.nanoTime();
+		SocketChannel remote = SocketChannel.open();
+		try {
+			remote.socket().connect(address, connectTimeout * 1000);
+		} catch (IOException e) {
+			logger.warn("Cannot forward due to remote {}: {}", address, e);
+			if (metrics != null) {
+				metrics.connectionFailed();
+			}
+			close(remote);
+			throw e;
+		}
+		if (metrics != null) {
+			metrics.getConnectTime().recordNanos(System.nanoTime() - connectStart);
+		}
+		logger.info("Remote connection is ready: " + remote.socket().getRemoteSocketAddress());
+		BlockingExchange exchange;
+		try {
+			exchange = new BlockingExchange(localChannel, remote, options, metrics);
+		} catch (IOException e) {
+			logger.warn("Cannot forward due to local " + localChannel.socket().getInetAddress(), e);
+			close(localChannel);
+			close(remote);
+			return;
+		}
+		exchange.start(engine);
+	}
+
+	public void close() throws IOException {
+		if (localChannel.isOpen()) {
+			close(localChannel);
+		}
+	}
+
+	private static void close(Closeable closeHandler) {
+		try {
+			if (closeHandler != null) {
+				closeHandler.close();
+			}
+		} catch (IOException e) {
+			logger.debug("close error", e);
+		}
+	}
+
+	public void setAddress(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+}
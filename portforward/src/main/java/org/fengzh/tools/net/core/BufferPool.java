@@ -0,0 +1,133 @@
+package org.fengzh.tools.net.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of direct {@link ByteBuffer}s split into power-of-two size
+ * classes (1 KB ~ 1 MB). Every thread keeps a small cache in front of the
+ * shared queues, so a reactor thread mostly recycles its own buffers without
+ * touching shared state.
+ */
+public class BufferPool {
+
+	private static final int MIN_SHIFT = 10;
+
+	private static final int MAX_SHIFT = 20;
+
+	private static final int CLASS_COUNT = MAX_SHIFT - MIN_SHIFT + 1;
+
+	private static final BufferPool DEFAULT = new BufferPool(Integer.getInteger("bufferPoolSize", 1024),
+			Integer.getInteger("bufferPoolThreadCache", 32));
+
+	private final Queue<ByteBuffer>[] shared;
+
+	private final AtomicInteger[] sharedCount;
+
+	private final int maxShared;
+
+	private final int maxCached;
+
+	private final ThreadLocal<ArrayDeque<ByteBuffer>[]> caches = new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected ArrayDeque<ByteBuffer>[] initialValue() {
+			ArrayDeque<ByteBuffer>[] cache = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[CLASS_COUNT];
+			for (int i = 0; i < CLASS_COUNT; i++) {
+				cache[i] = new ArrayDeque<ByteBuffer>();
+			}
+			return cache;
+		}
+	};
+
+	/**
+	 * @param maxShared
+	 *            max buffers kept in the shared queue of each size class
+	 * @param maxCached
+	 *            max buffers kept in each thread cache of each size class
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(int maxShared, int maxCached) {
+		this.maxShared = maxShared;
+		this.maxCached = maxCached;
+		this.shared = (Queue<ByteBuffer>[]) new Queue<?>[CLASS_COUNT];
+		this.sharedCount = new AtomicInteger[CLASS_COUNT];
+		for (int i = 0; i < CLASS_COUNT; i++) {
+			shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			sharedCount[i] = new AtomicInteger();
+		}
+	}
+
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns a cleared direct buffer with at least <code>size</code> bytes of
+	 * capacity. Sizes above the largest class are allocated without pooling.
+	 */
+	public ByteBuffer acquire(int size) {
+		int index = indexOf(size);
+		if (index < 0) {
+			return ByteBuffer.allocateDirect(size);
+		}
+		ByteBuffer buffer = caches.get()[index].pollFirst();
+		if (buffer == null) {
+			buffer = shared[index].poll();
+			if (buffer != null) {
+				sharedCount[index].decrementAndGet();
+			} else {
+				buffer = ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Gives the buffer back to the pool. Buffers not acquired from a pool are
+	 * simply dropped.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		int capacity = buffer.capacity();
+		if (Integer.bitCount(capacity) != 1) {
+			return;
+		}
+		int index = indexOf(capacity);
+		if (index < 0) {
+			return;
+		}
+		buffer.clear();
+		ArrayDeque<ByteBuffer> cache = caches.get()[index];
+		if (cache.size() < maxCached) {
+			cache.offerFirst(buffer);
+		} else if (sharedCount[index].incrementAndGet() <= maxShared) {
+			shared[index].offer(buffer);
+		} else {
+			// pool is full, let GC reclaim it
+			sharedCount[index].decrementAndGet();
+		}
+	}
+
+	public int getSharedCount() {
+		int count = 0;
+		for (AtomicInteger c : sharedCount) {
+			count += c.get();
+		}
+		return count;
+	}
+
+	private static int indexOf(int size) {
+		if (size <= 0 || size > (1 << MAX_SHIFT)) {
+			return -1;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+	}
+}
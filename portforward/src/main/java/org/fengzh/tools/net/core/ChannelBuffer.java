@@ -13,55 +13,173 @@ class ChannelBuffer implements ChannelHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(ChannelBuffer.class);
 
-    private ByteBuffer outgoing = null;
+    private final BufferPool pool = BufferPool.getDefault();
 
-    private ByteBuffer incoming = ByteBuffer.allocate(8 * 1024);
+    private final ChannelOptions options;
+
+    private final EventLoop loop;
+
+    // loop time of last successful read or write
+    private long lastActivity;
+
+    private TimerWheel.Timeout idleTimer;
+
+    private Runnable idleCheck;
+
+    // counts bytes read by this side, may be null
+    private RateMeter readMeter;
+
+    private TrafficMetrics metrics;
+
+    private long openedNanos;
+
+    // remote side waits for its first byte
+    private boolean awaitFirstByte = false;
+
+    private boolean allClosed = false;
+
+    // acquired on demand, idle connections do not hold any buffer
+    private ByteBuffer incoming = null;
 
     private boolean closed = false;
 
+    // reading is suspended until the peer drains the incoming buffer
+    private boolean readSuspended = false;
+
     private SelectionKey readKey;
 
     private SelectionKey writeKey;
 
+    private ChannelBuffer peer;
+
+    private ChannelBuffer(EventLoop loop, ChannelOptions options) {
+        this.loop = loop;
+        this.options = options;
+        this.lastActivity = loop.currentTimeMillis();
+    }
+
     public ByteBuffer getOutgoing() {
-        return outgoing;
+        return peer.incoming;
     }
 
     public ByteBuffer getIncoming() {
+        if (incoming == null) {
+            incoming = pool.acquire(options.getBufferSize());
+        }
         return incoming;
     }
 
+    private void releaseIncoming() {
+        if (incoming != null) {
+            pool.release(incoming);
+            incoming = null;
+        }
+    }
+
     public void setClose() {
         closed = true;
     }
 
     public void closeAll() {
+        if (!allClosed) {
+            allClosed = true;
+            peer.allClosed = true;
+            if (metrics != null) {
+                metrics.connectionClosed();
+                metrics.getSessionDuration().recordNanos(System.nanoTime() - openedNanos);
+            }
+        }
+        cancelIdleCheck();
+        peer.cancelIdleCheck();
         readKey.cancel();
         close(readKey.channel());
         writeKey.cancel();
         close(writeKey.channel());
+        releaseIncoming();
+        peer.releaseIncoming();
         logger.debug("Closing forward connections...");
     }
 
     public boolean canCloseNow() {
-        return incoming.position() == 0 && closed;
+        return (incoming == null || incoming.position() == 0) && closed;
     }
 
-    public static ChannelBuffer create(SelectionKey key) {
-        ChannelBuffer bufferChannel = new ChannelBuffer();
+    public static ChannelBuffer create(SelectionKey key, EventLoop loop, ChannelOptions options) {
+        ChannelBuffer bufferChannel = new ChannelBuffer(loop, options);
         key.attach(bufferChannel);
         bufferChannel.readKey = key;
         return bufferChannel;
     }
 
+    /**
+     * Sends the data to the peer ahead of the bytes of this channel, in one
+     * write with whatever the channel has already received. Must be called
+     * before the first event of the channel.
+     */
+    void writeFirst(ByteBuffer data) {
+        if (incoming == null) {
+            incoming = pool.acquire(Math.max(options.getBufferSize(), data.remaining()));
+        }
+        incoming.put(data);
+        handleRead(readKey);
+    }
+
     public void connect(ChannelBuffer other) {
         // exchange read/write buffers
-        this.outgoing = other.incoming;
-        other.outgoing = this.incoming;
+        this.peer = other;
+        other.peer = this;
         this.writeKey = other.readKey;
         other.writeKey = this.readKey;
     }
 
+    void setMetrics(TrafficMetrics metrics, RateMeter readMeter, boolean remote) {
+        this.metrics = metrics;
+        this.readMeter = readMeter;
+        this.openedNanos = System.nanoTime();
+        this.awaitFirstByte = remote;
+    }
+
+    /**
+     * Watches the activity of both directions, the pair is closed once it is
+     * idle longer than the idle timeout.
+     */
+    public void startIdleCheck() {
+        long timeout = options.getIdleTimeout() * 1000L;
+        if (timeout > 0) {
+            idleCheck = new Runnable() {
+
+                public void run() {
+                    checkIdle();
+                }
+            };
+            idleTimer = loop.schedule(idleCheck, timeout);
+        }
+    }
+
+    private void checkIdle() {
+        idleTimer = null;
+        if (!readKey.isValid()) {
+            return;
+        }
+        long timeout = options.getIdleTimeout() * 1000L;
+        long idle = loop.currentTimeMillis() - Math.max(lastActivity, peer.lastActivity);
+        if (idle >= timeout) {
+            logger.info("Close idle connections after {} ms: {}", idle,
+                    ((SocketChannel) readKey.channel()).socket().getRemoteSocketAddress());
+            closeAll();
+        } else {
+            // activity seen, check again when it could become idle
+            idleTimer = loop.schedule(idleCheck, timeout - idle);
+        }
+    }
+
+    private void cancelIdleCheck() {
+        if (idleTimer != null) {
+            idleTimer.cancel();
+            idleTimer = null;
+        }
+    }
+
     public void onProcessing(SelectionKey key) throws IOException {
         // handle write first (write all)
         if (key.isWritable()) {
@@ -71,21 +189,62 @@ class ChannelBuffer implements ChannelHandler {
         }
     }
 
+    /**
+     * Reads and writes through in turns until the source would block, the
+     * destination pushes back or the I/O budget is used. A key with more data
+     * stays selected, so other ready keys of the loop get their turn before it
+     * is served again.
+     */
     private void handleRead(SelectionKey key) {
         SocketChannel channel = (SocketChannel) key.channel();
         ChannelBuffer buffer = (ChannelBuffer) key.attachment();
         logger.trace("READ events from {}", channel.socket().getRemoteSocketAddress());
+        int budget = options.getIoBudget();
+        int total = 0;
         int count;
         try {
-            count = channel.read(buffer.getIncoming());
-            logger.trace("... read {}, buffer: {}" + count, buffer.getIncoming());
-            if (count < 0) {
-                // indicate
-                buffer.setClose();
+            do {
+                ByteBuffer b = buffer.getIncoming();
+                int space = b.remaining();
+                count = channel.read(b);
+                logger.trace("... read {}, buffer: {}", count, b);
+                if (count < 0) {
+                    // indicate
+                    buffer.setClose();
+                    // no more data, stop reading the end of stream again
+                    buffer.suspendRead();
+                    break;
+                } else if (count == 0) {
+                    break;
+                }
+                total += count;
+                // send to peer directly, wait for OP_WRITE only if its socket buffer is full
+                buffer.writeThrough();
+                // a short read has drained the socket, skip the empty read
+                if (count < space) {
+                    break;
+                }
+            } while (total < budget && buffer.getIncoming().position() == 0);
+            if (total > 0) {
+                buffer.lastActivity = loop.currentTimeMillis();
+                if (buffer.readMeter != null) {
+                    buffer.readMeter.mark(total);
+                    if (buffer.awaitFirstByte) {
+                        buffer.awaitFirstByte = false;
+                        metrics.getFirstByteTime().recordNanos(System.nanoTime() - openedNanos);
+                    }
+                }
             }
             if (buffer.getIncoming().position() > 0) {
                 logger.trace("enable write ...");
                 buffer.enableWriteOp(key);
+                if (buffer.getIncoming().position() >= buffer.getHighWatermark()) {
+                    logger.trace("suspend read ...");
+                    buffer.suspendRead();
+                }
+            } else {
+                // nothing pending, give the buffer back
+                buffer.releaseIncoming();
             }
             if (buffer.canCloseNow()) {
                 buffer.closeAll();
@@ -101,28 +260,69 @@ class ChannelBuffer implements ChannelHandler {
         ChannelBuffer buffer = (ChannelBuffer) key.attachment();
         logger.trace("WRITE events from {}", channel.socket().getRemoteSocketAddress());
         ByteBuffer b = buffer.getOutgoing();
-        b.flip();
-        if (b.hasRemaining()) {
+        if (b != null) {
+            b.flip();
+        }
+        if (b != null && b.hasRemaining()) {
             try {
                 int count = channel.write(b);
                 b.compact();
                 logger.trace("... write {}, write: {}", count, b);
+                if (count > 0) {
+                    buffer.lastActivity = loop.currentTimeMillis();
+                }
+                if (b.position() <= options.getLowWatermark()) {
+                    buffer.peer.resumeRead();
+                }
             } catch (IOException e) {
                 logger.debug("write error", e);
                 buffer.closeAll();
+                return;
             }
         } else {
-            // enable reading
-            b.clear();
+            // all data is sent, return the buffer to pool
+            buffer.peer.releaseIncoming();
             // cancel write operation
             logger.trace("disable write ...");
             key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            buffer.peer.resumeRead();
         }
-        if (buffer.canCloseNow()) {
+        // peer may have got end of stream while its data was pending
+        if (buffer.canCloseNow() || buffer.peer.canCloseNow()) {
             buffer.closeAll();
         }
     }
 
+    private void writeThrough() throws IOException {
+        ByteBuffer b = incoming;
+        b.flip();
+        try {
+            int count = ((SocketChannel) writeKey.channel()).write(b);
+            logger.trace("... write through {}, write: {}", count, b);
+        } finally {
+            b.compact();
+        }
+    }
+
+    private int getHighWatermark() {
+        return Math.min(options.getHighWatermark(), incoming.capacity());
+    }
+
+    private void suspendRead() {
+        if (!readSuspended && readKey.isValid()) {
+            readKey.interestOps(readKey.interestOps() & ~SelectionKey.OP_READ);
+            readSuspended = true;
+        }
+    }
+
+    private void resumeRead() {
+        if (readSuspended && !closed && readKey.isValid()) {
+            logger.trace("resume read ...");
+            readKey.interestOps(readKey.interestOps() | SelectionKey.OP_READ);
+            readSuspended = false;
+        }
+    }
+
     private void enableWriteOp(SelectionKey key) {
         writeKey.interestOps(writeKey.interestOps() | SelectionKey.OP_WRITE);
     }
@@ -2,8 +2,8 @@ package org.fengzh.tools.net.core;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
 public class ChannelExchange implements Closeable {
@@ -11,7 +11,25 @@ public class ChannelExchange implements Closeable {
     private ChannelBuffer localBuf;
     private ChannelBuffer remoteBuf;
 
-    public ChannelExchange(SocketChannel local, SocketChannel remote, Selector selector) throws IOException {
+    public ChannelExchange(SocketChannel local, SocketChannel remote, EventLoop loop) throws IOException {
+        this(local, remote, loop, new ChannelOptions());
+    }
+
+    /**
+     * Registers both channels to the loop, must be called in the loop thread.
+     */
+    public ChannelExchange(SocketChannel local, SocketChannel remote, EventLoop loop, ChannelOptions options)
+            throws IOException {
+        this(local, remote, loop, options, null);
+    }
+
+    /**
+     * Registers both channels to the loop, must be called in the loop thread.
+     * Traffic of the pair is counted in the metrics if it is not
+     * <code>null</code>.
+     */
+    public ChannelExchange(SocketChannel local, SocketChannel remote, EventLoop loop, ChannelOptions options,
+            TrafficMetrics metrics) throws IOException {
         boolean localBlocking = local.isBlocking();
         boolean remoteBlocking = remote.isBlocking();
         SelectionKey localKey = null;
@@ -19,12 +37,18 @@ public class ChannelExchange implements Closeable {
         boolean success = false;
         try {
             local.configureBlocking(false);
-            localKey = local.register(selector, SelectionKey.OP_READ);
-            localBuf = ChannelBuffer.create(localKey);
+            localKey = local.register(loop.getSelector(), SelectionKey.OP_READ);
+            localBuf = ChannelBuffer.create(localKey, loop, options);
             remote.configureBlocking(false);
-            remoteKey = remote.register(selector, SelectionKey.OP_READ);
-            remoteBuf = ChannelBuffer.create(remoteKey);
+            remoteKey = remote.register(loop.getSelector(), SelectionKey.OP_READ);
+            remoteBuf = ChannelBuffer.create(remoteKey, loop, options);
             localBuf.connect(remoteBuf);
+            if (metrics != null) {
+                localBuf.setMetrics(metrics, metrics.getBytesSentMeter(), false);
+                remoteBuf.setMetrics(metrics, metrics.getBytesReceivedMeter(), true);
+                metrics.connectionOpened();
+            }
+            localBuf.startIdleCheck();
             success = true;
         } finally {
             if (!success) {
@@ -44,6 +68,15 @@ public class ChannelExchange implements Closeable {
         }
     }
 
+    /**
+     * Sends the data to the remote ahead of the local bytes, coalesced into one
+     * write with whatever the local side has already received. Must be called
+     * in the loop thread right after the exchange is created.
+     */
+    public void writeFirst(ByteBuffer data) {
+        localBuf.writeFirst(data);
+    }
+
     public void close() {
         localBuf.closeAll();
     }
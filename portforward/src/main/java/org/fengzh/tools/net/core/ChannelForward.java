@@ -4,9 +4,11 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,14 +23,60 @@ public class ChannelForward implements ChannelHandler, Closeable {
 
 	}
 
+	/**
+	 * Candidates and bookkeeping of a racing connect, see
+	 * {@link ChannelForward#startRace(EventLoop, ConnectRace, long)}. Called
+	 * in the loop thread.
+	 */
+	public static interface ConnectRace {
+
+		/**
+		 * @return next candidate to connect, -1 if there is no more
+		 */
+		public int nextCandidate();
+
+		public InetSocketAddress getAddress(int candidate);
+
+		/**
+		 * @return metrics of the candidate, may be <code>null</code>
+		 */
+		public TrafficMetrics getMetrics(int candidate);
+
+		public void connected(int candidate, long nanos);
+
+		public void connectFailed(int candidate, long nanos);
+
+		/**
+		 * The attempt was dropped because another one connected first.
+		 */
+		public void connectCancelled(int candidate, long nanos);
+
+		/**
+		 * All candidates failed, the local channel is still open.
+		 */
+		public void allFailed();
+
+	}
+
 	private static final Logger logger = LoggerFactory.getLogger(ChannelForward.class.getName());
 	private InetSocketAddress address;
-	private long timeout = Long.MAX_VALUE;
+	private TimerWheel.Timeout connectTimer;
 	private int connectTimeout = Integer.getInteger("connectTimeout", 3);
 	private SocketChannel localChannel;
 	private ConnectStatusHandler connectStatusHandler;
 	private boolean forwarding = false;
 	private SelectionKey forwardingKey = null;
+	private ChannelOptions options = new ChannelOptions();
+	private EventLoop loop;
+	private TrafficMetrics metrics;
+	private long connectStart;
+	private ConnectRace race;
+	private long raceDelay;
+	private TimerWheel.Timeout raceTimer;
+	private boolean raceDone = false;
+	private final List<Attempt> attempts = new ArrayList<Attempt>();
+	private ConnectionPool pool;
+	private ByteBuffer firstData;
 
 	public ChannelForward(SocketChannel local) {
 		this.localChannel = local;
@@ -38,18 +86,69 @@ public class ChannelForward implements ChannelHandler, Closeable {
 		this.connectStatusHandler = connectStatusHandler;
 	}
 
-	public void startForward(Selector selector) throws IOException {
+	public void setOptions(ChannelOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * @param metrics
+	 *            metrics of the remote address, may be <code>null</code>
+	 */
+	public void setMetrics(TrafficMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param pool
+	 *            warm connections to the address, may be <code>null</code>
+	 */
+	public void setPool(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * @param firstData
+	 *            bytes already read from the local channel, written to the
+	 *            remote before anything else, may be <code>null</code>
+	 */
+	public void setFirstData(ByteBuffer firstData) {
+		this.firstData = firstData;
+	}
+
+	/**
+	 * Starts connecting to remote, must be called in the loop thread. A
+	 * connection from the pool is forwarded at once if there is one.
+	 */
+	public void startForward(EventLoop loop) throws IOException {
 		SocketChannel remote = null;
+		this.loop = loop;
+		if (metrics != null) {
+			metrics.connectionAccepted();
+		}
+		connectStart = System.nanoTime();
+		if (pool != null) {
+			remote = pool.poll();
+			if (remote != null) {
+				forwardPooled(remote);
+				return;
+			}
+		}
 		try {
 			remote = SocketChannel.open();
 			remote.configureBlocking(false);
-			forwardingKey = remote.register(selector, SelectionKey.OP_CONNECT, this);
+			forwardingKey = remote.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
 			remote.connect(getAddress());
-			timeout = connectTimeout * 1000L + System.currentTimeMillis();
+			connectTimer = loop.schedule(new Runnable() {
+
+				public void run() {
+					checkValidConnecting();
+				}
+			}, connectTimeout * 1000L);
 			logger.debug("Connecting to remote: {}", getAddress());
 		} catch (NoRouteToHostException e) {
 			// maybe Internet access lost
 			logger.error("Cannot forward connection dueo to no route error", e);
+			connectFailed();
 			// cannot connect to remote
 			close(remote);
 			forwardingKey.cancel();
@@ -57,6 +156,7 @@ public class ChannelForward implements ChannelHandler, Closeable {
 			throw e;
 		} catch (IOException e) {
 			logger.warn("Cannot forward connection", e);
+			connectFailed();
 			// cannot connect to remote
 			close(remote);
 			if (connectStatusHandler != null) {
@@ -67,26 +167,26 @@ public class ChannelForward implements ChannelHandler, Closeable {
 		}
 	}
 
-	public boolean checkValidConnecting() {
+	private boolean checkValidConnecting() {
+		connectTimer = null;
 		SelectionKey key = forwardingKey;
 		if (key == null)
 			return false;
-		if (key != null && timeout - System.currentTimeMillis() <= 0) {
-			// connecting is timeout
-			if (key.isValid() && !key.isConnectable() && (key.interestOps() & SelectionKey.OP_CONNECT) != 0) {
-				logger.info("Close timeout connection: {}", address);
-				try {
-					((SocketChannel) key.channel()).close();
-				} catch (IOException e) {
-					logger.warn("Close timeout connection got error", e);
-				}
-				if (connectStatusHandler != null) {
-					connectStatusHandler.connectError(key);
-				}
-				key.cancel();
-				forwardingKey = null;
-				return false;
+		// connecting is timeout
+		if (key.isValid() && !key.isConnectable() && (key.interestOps() & SelectionKey.OP_CONNECT) != 0) {
+			logger.info("Close timeout connection: {}", address);
+			connectFailed();
+			try {
+				((SocketChannel) key.channel()).close();
+			} catch (IOException e) {
+				logger.warn("Close timeout connection got error", e);
+			}
+			if (connectStatusHandler != null) {
+				connectStatusHandler.connectError(key);
 			}
+			key.cancel();
+			forwardingKey = null;
+			return false;
 		}
 		return true;
 	}
@@ -97,13 +197,21 @@ public class ChannelForward implements ChannelHandler, Closeable {
 		if (key == forwardingKey) {
 			forwardingKey = null;
 		}
+		if (connectTimer != null) {
+			connectTimer.cancel();
+			connectTimer = null;
+		}
 		try {
 			connected = remote.finishConnect();
+			if (metrics != null && connected) {
+				metrics.getConnectTime().recordNanos(System.nanoTime() - connectStart);
+			}
 			if (connectStatusHandler != null && connected) {
 				connectStatusHandler.connected(key);
 			}
 		} catch (IOException e) {
 			logger.warn("Cannot forward due to remote {}: {}", this.getAddress(), e);
+			connectFailed();
 			close(remote);
 			if (!connected && connectStatusHandler != null) {
 				connectStatusHandler.connectError(key);
@@ -112,8 +220,7 @@ public class ChannelForward implements ChannelHandler, Closeable {
 		}
 		logger.info("Remote connection is ready: " + remote.socket().getRemoteSocketAddress());
 		try {
-			new ChannelExchange(localChannel, remote, key.selector());
-			forwarding = true;
+			startExchange(remote);
 		} catch (IOException e) {
 			logger.warn("Cannot forward due to local " + localChannel.socket().getInetAddress(), e);
 			close(localChannel);
@@ -121,7 +228,251 @@ public class ChannelForward implements ChannelHandler, Closeable {
 		}
 	}
 
+	/**
+	 * Races connects to the candidates, must be called in the loop thread.
+	 * The next candidate is started when no attempt has connected within
+	 * the delay or as soon as an attempt fails. The first connected attempt
+	 * is forwarded, the others are closed.
+	 */
+	public void startRace(EventLoop loop, ConnectRace race, long delayMillis) {
+		this.loop = loop;
+		this.race = race;
+		this.raceDelay = delayMillis;
+		startNextAttempt();
+	}
+
+	private void startNextAttempt() {
+		if (raceTimer != null) {
+			raceTimer.cancel();
+			raceTimer = null;
+		}
+		while (!raceDone) {
+			int next = race.nextCandidate();
+			if (next < 0) {
+				if (attempts.isEmpty()) {
+					raceFailed();
+				}
+				return;
+			}
+			Attempt attempt = new Attempt(next, race.getAddress(next),
+					race.getMetrics(next));
+			if (attempt.start()) {
+				break;
+			}
+		}
+		if (!raceDone) {
+			raceTimer = loop.schedule(new Runnable() {
+
+				public void run() {
+					raceTimer = null;
+					startNextAttempt();
+				}
+			}, raceDelay);
+		}
+	}
+
+	private void raceWon(Attempt winner) {
+		raceDone = true;
+		if (raceTimer != null) {
+			raceTimer.cancel();
+			raceTimer = null;
+		}
+		attempts.remove(winner);
+		for (Attempt attempt : attempts) {
+			attempt.dropped();
+		}
+		attempts.clear();
+		address = winner.address;
+		metrics = winner.metrics;
+		long nanos = System.nanoTime() - winner.start;
+		if (metrics != null) {
+			metrics.connectionAccepted();
+			metrics.getConnectTime().recordNanos(nanos);
+		}
+		race.connected(winner.candidate, nanos);
+		SocketChannel remote = winner.channel;
+		logger.info("Remote connection is ready: " + remote.socket().getRemoteSocketAddress());
+		try {
+			startExchange(remote);
+		} catch (IOException e) {
+			logger.warn("Cannot forward due to local " + localChannel.socket().getInetAddress(), e);
+			close(localChannel);
+			close(remote);
+		}
+	}
+
+	private void raceFailed() {
+		raceDone = true;
+		logger.warn("All remote connects failed for {}", localChannel.socket().getRemoteSocketAddress());
+		race.allFailed();
+	}
+
+	/**
+	 * One connect of a race.
+	 */
+	private class Attempt implements ChannelHandler {
+
+		private final int candidate;
+		private final InetSocketAddress address;
+		private final TrafficMetrics metrics;
+		private final long start = System.nanoTime();
+		private SocketChannel channel;
+		private TimerWheel.Timeout timer;
+
+		Attempt(int candidate, InetSocketAddress address, TrafficMetrics metrics) {
+			this.candidate = candidate;
+			this.address = address;
+			this.metrics = metrics;
+		}
+
+		/**
+		 * @return <code>false</code> if failed at once
+		 */
+		boolean start() {
+			if (metrics != null) {
+				metrics.raceAttemptStarted();
+			}
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+				attempts.add(this);
+				if (channel.connect(address)) {
+					raceWon(this);
+					return true;
+				}
+				timer = loop.schedule(new Runnable() {
+
+					public void run() {
+						timer = null;
+						logger.info("Close timeout connection: {}", address);
+						failed();
+					}
+				}, connectTimeout * 1000L);
+				logger.debug("Connecting to remote: {}", address);
+				return true;
+			} catch (IOException e) {
+				logger.warn("Cannot connect to remote {}: {}", address, e);
+				attempts.remove(this);
+				close(channel);
+				countFailed();
+				race.connectFailed(candidate, System.nanoTime() - start);
+				return false;
+			}
+		}
+
+		public void onProcessing(SelectionKey key) throws IOException {
+			if (raceDone || !key.isConnectable())
+				return;
+			try {
+				if (!channel.finishConnect())
+					return;
+			} catch (IOException e) {
+				logger.warn("Cannot forward due to remote {}: {}", address, e);
+				failed();
+				return;
+			}
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+			raceWon(this);
+		}
+
+		private void failed() {
+			cancel();
+			attempts.remove(this);
+			countFailed();
+			race.connectFailed(candidate, System.nanoTime() - start);
+			startNextAttempt();
+		}
+
+		/**
+		 * A failed attempt counts as a failed connection of its backend, as
+		 * a failed serial connect does.
+		 */
+		private void countFailed() {
+			if (metrics != null) {
+				metrics.connectionAccepted();
+				metrics.connectionFailed();
+			}
+		}
+
+		/**
+		 * Another attempt won or the forward was closed, the attempt is not
+		 * counted as a connection.
+		 */
+		void dropped() {
+			cancel();
+			if (metrics != null) {
+				metrics.raceAttemptCancelled();
+			}
+			race.connectCancelled(candidate, System.nanoTime() - start);
+		}
+
+		void cancel() {
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+			// closing deregisters the key
+			close(channel);
+		}
+	}
+
+	/**
+	 * The pooled connection was checked live when taken, so the connect is
+	 * reported as done before forwarding like a fresh one.
+	 */
+	private void forwardPooled(SocketChannel remote) {
+		if (metrics != null) {
+			metrics.getConnectTime().recordNanos(System.nanoTime() - connectStart);
+		}
+		logger.debug("Use pooled connection: {}", address);
+		if (connectStatusHandler != null) {
+			connectStatusHandler.connected(remote.keyFor(loop.getSelector()));
+		}
+		try {
+			startExchange(remote);
+		} catch (IOException e) {
+			logger.warn("Cannot forward due to local " + localChannel.socket().getInetAddress(), e);
+			close(localChannel);
+			close(remote);
+		} catch (RuntimeException e) {
+			// not thrown to the acceptor, the rest of its batch is dispatched
+			logger.warn("Cannot forward pooled connection to " + address, e);
+			close(localChannel);
+			close(remote);
+		}
+	}
+
+	private void startExchange(SocketChannel remote) throws IOException {
+		ChannelExchange exchange = new ChannelExchange(localChannel, remote, loop, options, metrics);
+		forwarding = true;
+		if (firstData != null) {
+			exchange.writeFirst(firstData);
+			firstData = null;
+		}
+	}
+
+	private void connectFailed() {
+		if (metrics != null) {
+			metrics.connectionFailed();
+		}
+	}
+
 	public void close() throws IOException {
+		if (race != null && !raceDone) {
+			raceDone = true;
+			if (raceTimer != null) {
+				raceTimer.cancel();
+				raceTimer = null;
+			}
+			for (Attempt attempt : attempts) {
+				attempt.dropped();
+			}
+			attempts.clear();
+		}
 		if (localChannel.isOpen()) {
 			close(localChannel);
 		}
@@ -0,0 +1,126 @@
+package org.fengzh.tools.net.core;
+
+/**
+ * Per listener settings of forwarded channels. Default values are taken from
+ * system properties.
+ */
+public class ChannelOptions {
+
+	private int bufferSize = Integer.getInteger("bufferSize", 8 * 1024);
+
+	private int highWatermark = Integer.getInteger("highWatermark", bufferSize);
+
+	private int lowWatermark = Integer.getInteger("lowWatermark", bufferSize / 2);
+
+	private int idleTimeout = Integer.getInteger("idleTimeout", 0);
+
+	private int ioBudget = Integer.getInteger("ioBudget", 64 * 1024);
+
+	private int acceptors = Integer.getInteger("acceptors", 1);
+
+	private int backlog = Integer.getInteger("backlog", 1024);
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("Buffer size should be positive.");
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Pending bytes in the buffer at which reading from the source channel is
+	 * suspended. Values above the buffer size mean "when the buffer is full".
+	 */
+	public int getHighWatermark() {
+		return highWatermark;
+	}
+
+	public void setHighWatermark(int highWatermark) {
+		if (highWatermark <= 0)
+			throw new IllegalArgumentException("High watermark should be positive.");
+		this.highWatermark = highWatermark;
+	}
+
+	/**
+	 * Pending bytes in the buffer at or below which suspended reading is
+	 * resumed.
+	 */
+	public int getLowWatermark() {
+		return lowWatermark;
+	}
+
+	public void setLowWatermark(int lowWatermark) {
+		if (lowWatermark < 0)
+			throw new IllegalArgumentException("Low watermark should not be negative.");
+		this.lowWatermark = lowWatermark;
+	}
+
+	/**
+	 * Seconds without any traffic in both directions after which a forwarded
+	 * connection pair is closed, 0 (the default) to keep idle connections
+	 * forever.
+	 */
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public void setIdleTimeout(int idleTimeout) {
+		if (idleTimeout < 0)
+			throw new IllegalArgumentException("Idle timeout should not be negative.");
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Bytes read from one channel per readiness event, in turns with writing
+	 * them through, before other ready channels of the loop are served. At
+	 * most one buffer is read per event if not above the buffer size.
+	 */
+	public int getIoBudget() {
+		return ioBudget;
+	}
+
+	public void setIoBudget(int ioBudget) {
+		if (ioBudget <= 0)
+			throw new IllegalArgumentException("I/O budget should be positive.");
+		this.ioBudget = ioBudget;
+	}
+
+	/**
+	 * Server sockets bound to the same port with SO_REUSEPORT, each accepting
+	 * on its own loop. The kernel spreads incoming connections over them, 1
+	 * means a single listener without SO_REUSEPORT.
+	 */
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	public void setAcceptors(int acceptors) {
+		if (acceptors <= 0)
+			throw new IllegalArgumentException("Acceptors should be positive.");
+		this.acceptors = acceptors;
+	}
+
+	/**
+	 * Pending connection queue length of each listener, the kernel caps it
+	 * (somaxconn on Linux). The JDK default of 50 overflows in connect bursts.
+	 */
+	public int getBacklog() {
+		return backlog;
+	}
+
+	public void setBacklog(int backlog) {
+		if (backlog <= 0)
+			throw new IllegalArgumentException("Backlog should be positive.");
+		this.backlog = backlog;
+	}
+
+	@Override
+	public String toString() {
+		return "ChannelOptions [bufferSize=" + bufferSize + ", highWatermark=" + highWatermark
+				+ ", lowWatermark=" + lowWatermark + ", idleTimeout=" + idleTimeout + ", ioBudget=" + ioBudget
+				+ ", acceptors=" + acceptors + ", backlog=" + backlog + "]";
+	}
+}
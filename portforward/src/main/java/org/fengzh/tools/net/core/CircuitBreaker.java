@@ -0,0 +1,139 @@
+package org.fengzh.tools.net.core;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per target circuit breaker. Consecutive failures open the circuit, no
+ * connection is tried while it is open. After the backoff one probe is let
+ * through (half-open): success closes the circuit, failure opens it again
+ * with doubled backoff. Backoff gets equal jitter so targets which failed
+ * together are not probed together.
+ * <p>
+ * Defaults are taken from system properties breakerFailures (1),
+ * breakerBackoff (1000 ms) and breakerMaxBackoff (60000 ms).
+ */
+public class CircuitBreaker {
+
+	public static enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long baseBackoff;
+	private final long maxBackoff;
+	private State state = State.CLOSED;
+	private int failures = 0;
+	// times opened since last closed
+	private int trips = 0;
+	private long openUntil;
+
+	public CircuitBreaker() {
+		this(Integer.getInteger("breakerFailures", 1), Long.getLong("breakerBackoff", 1000), Long.getLong(
+				"breakerMaxBackoff", 60000));
+	}
+
+	/**
+	 * @param failureThreshold
+	 *            consecutive failures which open the circuit
+	 * @param baseBackoff
+	 *            milliseconds open after the first trip
+	 * @param maxBackoff
+	 *            upper limit of the doubled backoff in milliseconds
+	 */
+	public CircuitBreaker(int failureThreshold, long baseBackoff, long maxBackoff) {
+		if (failureThreshold <= 0)
+			throw new IllegalArgumentException("Failure threshold should be positive.");
+		if (baseBackoff <= 0 || maxBackoff < baseBackoff)
+			throw new IllegalArgumentException("Invalid backoff: " + baseBackoff + "/" + maxBackoff);
+		this.failureThreshold = failureThreshold;
+		this.baseBackoff = baseBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #tryAcquire()} would currently
+	 *         succeed, without changing the state
+	 */
+	public synchronized boolean isAvailable() {
+		return state == State.CLOSED || (state == State.OPEN && System.nanoTime() - openUntil >= 0);
+	}
+
+	/**
+	 * Asks for permission to connect. Once the backoff is over the first
+	 * caller gets the probe and others are refused until its result is
+	 * recorded.
+	 */
+	public synchronized boolean tryAcquire() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.nanoTime() - openUntil >= 0) {
+				state = State.HALF_OPEN;
+				return true;
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		state = State.CLOSED;
+		failures = 0;
+		trips = 0;
+	}
+
+	public synchronized void recordFailure() {
+		if (state == State.OPEN) {
+			// connects started before the circuit was opened
+			return;
+		}
+		failures++;
+		if (state == State.HALF_OPEN || failures >= failureThreshold) {
+			open();
+		}
+	}
+
+	private void open() {
+		long backoff = baseBackoff << Math.min(trips, 30);
+		if (backoff <= 0 || backoff > maxBackoff) {
+			backoff = maxBackoff;
+		}
+		trips++;
+		long jittered = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(jittered);
+		state = State.OPEN;
+	}
+
+	/**
+	 * Gives back a probe which was neither successful nor failed, another
+	 * probe is allowed at once.
+	 */
+	public synchronized void release() {
+		if (state == State.HALF_OPEN) {
+			state = State.OPEN;
+			openUntil = System.nanoTime();
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return milliseconds until a probe is allowed, 0 if not open
+	 */
+	public synchronized long getRemainingBackoff() {
+		if (state != State.OPEN) {
+			return 0;
+		}
+		return Math.max(TimeUnit.NANOSECONDS.toMillis(openUntil - System.nanoTime()), 0);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return state == State.OPEN ? state + "(" + getRemainingBackoff() + "ms)" : state.toString();
+	}
+}
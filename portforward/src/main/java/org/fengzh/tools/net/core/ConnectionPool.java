@@ -0,0 +1,357 @@
+package org.fengzh.tools.net.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of idle connections established in advance to one remote host, so
+ * forwarding a new local connection does not wait for the TCP handshake.
+ * <p>
+ * Connects and maintenance run on the owner {@link EventLoop}, idle channels
+ * keep their key there without interest and can be taken from any thread. A
+ * taker registering to the same loop takes the key over. The
+ * pool aims at a target size which grows by one on every miss up to the
+ * maximum and shrinks back to the minimum when idle connections expire.
+ * <p>
+ * A pooled connection is only valid while the remote sends nothing: end of
+ * stream or unsolicited data discards it. That fits protocols where the
+ * client speaks first (HTTP, TLS), not ones with a server greeting.
+ * <p>
+ * The remote host is looked up in the {@link DnsResolver} cache for every
+ * connect, idle connections to an address the host no longer resolves to are
+ * discarded.
+ * <p>
+ * With a {@link CircuitBreaker} the pool only connects while it is closed and
+ * reports failed warm connects to it, probing a failed remote is left to the
+ * forwarded connections.
+ */
+public class ConnectionPool implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class.getName());
+
+	private static final long MAINTENANCE_INTERVAL = 1000;
+
+	private static final class Entry {
+
+		private final SocketChannel channel;
+		private final InetSocketAddress address;
+		private final long created = System.nanoTime();
+
+		Entry(SocketChannel channel, InetSocketAddress address) {
+			this.channel = channel;
+			this.address = address;
+		}
+	}
+
+	// last resolved address, updated by connects
+	private volatile InetSocketAddress address;
+	private final int minIdle;
+	private final int maxIdle;
+	private final long maxIdleNanos;
+	private final int connectTimeout = Integer.getInteger("connectTimeout", 3);
+	// oldest first, taken from the tail
+	private final ConcurrentLinkedDeque<Entry> idle = new ConcurrentLinkedDeque<Entry>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final AtomicInteger target;
+	private final AtomicBoolean refillQueued = new AtomicBoolean();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final Runnable refillTask = new Runnable() {
+
+		public void run() {
+			refillQueued.set(false);
+			refill();
+		}
+	};
+	// connects in progress, loop thread only
+	private int connecting = 0;
+	private EventLoop loop;
+	private CircuitBreaker breaker;
+	private volatile boolean closed = false;
+
+	/**
+	 * Sizes from system properties warmPoolMin (0), warmPoolMax (8) and
+	 * warmPoolMaxIdle (30 seconds).
+	 */
+	public ConnectionPool(InetSocketAddress address) {
+		this(address, Integer.getInteger("warmPoolMin", 0), Integer.getInteger("warmPoolMax", 8), Integer.getInteger(
+				"warmPoolMaxIdle", 30));
+	}
+
+	/**
+	 * @param maxIdleSeconds
+	 *            idle connections older than this are closed
+	 */
+	public ConnectionPool(InetSocketAddress address, int minIdle, int maxIdle, int maxIdleSeconds) {
+		if (minIdle < 0 || maxIdle < minIdle)
+			throw new IllegalArgumentException("Invalid pool size: " + minIdle + "/" + maxIdle);
+		if (maxIdleSeconds <= 0)
+			throw new IllegalArgumentException("Max idle time should be positive.");
+		this.address = address;
+		this.minIdle = minIdle;
+		this.maxIdle = maxIdle;
+		this.maxIdleNanos = TimeUnit.SECONDS.toNanos(maxIdleSeconds);
+		this.target = new AtomicInteger(minIdle);
+	}
+
+	/**
+	 * @param breaker
+	 *            breaker of the remote, may be <code>null</code>; set before
+	 *            {@link #start(EventLoop)}
+	 */
+	public void setCircuitBreaker(CircuitBreaker breaker) {
+		this.breaker = breaker;
+	}
+
+	/**
+	 * Starts filling the pool in the loop.
+	 */
+	public void start(EventLoop loop) {
+		this.loop = loop;
+		loop.execute(new Runnable() {
+
+			public void run() {
+				maintain();
+			}
+		});
+	}
+
+	/**
+	 * Takes a live connection, may be called from any thread.
+	 *
+	 * @return connected non-blocking channel, <code>null</code> if the pool
+	 *         is empty
+	 */
+	public SocketChannel poll() {
+		Entry entry;
+		while ((entry = idle.pollLast()) != null) {
+			idleCount.decrementAndGet();
+			if (isUsable(entry)) {
+				hits.increment();
+				requestRefill();
+				return entry.channel;
+			}
+			close(entry.channel);
+		}
+		misses.increment();
+		// demand is higher than the pool
+		int t;
+		while ((t = target.get()) < maxIdle && !target.compareAndSet(t, t + 1)) {
+		}
+		requestRefill();
+		return null;
+	}
+
+	private boolean isUsable(Entry entry) {
+		if (System.nanoTime() - entry.created >= maxIdleNanos) {
+			return false;
+		}
+		if (!entry.address.equals(address)) {
+			// host moved
+			return false;
+		}
+		SocketChannel channel = entry.channel;
+		if (!channel.isOpen() || !channel.isConnected()) {
+			return false;
+		}
+		try {
+			// nothing to read means the remote is still waiting for us
+			return channel.read(ByteBuffer.allocate(1)) == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void requestRefill() {
+		if (!closed && refillQueued.compareAndSet(false, true)) {
+			loop.execute(refillTask);
+		}
+	}
+
+	private void refill() {
+		if (breaker != null && breaker.getState() != CircuitBreaker.State.CLOSED) {
+			// retried by maintenance once traffic closes the breaker
+			return;
+		}
+		while (!closed && idleCount.get() + connecting < target.get()) {
+			if (!connect()) {
+				// retried by maintenance
+				break;
+			}
+		}
+	}
+
+	private boolean connect() {
+		SocketChannel channel = null;
+		try {
+			final InetSocketAddress remote = DnsResolver.getDefault().getCached(address);
+			address = remote;
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			if (channel.connect(remote)) {
+				connected(channel, remote);
+				return true;
+			}
+			connecting++;
+			final SocketChannel connectingChannel = channel;
+			final SelectionKey key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT);
+			final TimerWheel.Timeout timeout = loop.schedule(new Runnable() {
+
+				public void run() {
+					logger.debug("Warm connect timeout: {}", remote);
+					connecting--;
+					connectFailed();
+					key.cancel();
+					close(connectingChannel);
+				}
+			}, connectTimeout * 1000L);
+			key.attach(new ChannelHandler() {
+
+				public void onProcessing(SelectionKey key) throws IOException {
+					try {
+						if (!connectingChannel.finishConnect())
+							return;
+					} catch (IOException e) {
+						logger.debug("Warm connect to {} failed: {}", remote, e);
+						connecting--;
+						connectFailed();
+						timeout.cancel();
+						key.cancel();
+						close(connectingChannel);
+						return;
+					}
+					connecting--;
+					timeout.cancel();
+					// not cancelled, a taker in this loop could not register
+					// the channel again before the key is flushed
+					key.interestOps(0);
+					connected(connectingChannel, remote);
+				}
+			});
+			return true;
+		} catch (IOException e) {
+			logger.debug("Warm connect to {} failed: {}", address, e);
+			connectFailed();
+			close(channel);
+			return false;
+		}
+	}
+
+	private void connectFailed() {
+		if (breaker != null) {
+			breaker.recordFailure();
+		}
+	}
+
+	private void connected(SocketChannel channel, InetSocketAddress remote) {
+		if (closed) {
+			close(channel);
+			return;
+		}
+		idle.offerLast(new Entry(channel, remote));
+		idleCount.incrementAndGet();
+	}
+
+	/**
+	 * Drops expired or dead connections and refills, every second. Entries
+	 * are taken out while checked, so a concurrent {@link #poll()} never
+	 * gets a channel which is being read here.
+	 */
+	private void maintain() {
+		if (closed) {
+			return;
+		}
+		List<Entry> live = new ArrayList<Entry>();
+		Entry entry;
+		for (int n = idleCount.get(); n > 0 && (entry = idle.pollFirst()) != null; n--) {
+			idleCount.decrementAndGet();
+			boolean expired = System.nanoTime() - entry.created >= maxIdleNanos;
+			if (!expired && isUsable(entry)) {
+				live.add(entry);
+				continue;
+			}
+			close(entry.channel);
+			if (expired) {
+				// not used in time, shrink
+				int t;
+				while ((t = target.get()) > minIdle && !target.compareAndSet(t, t - 1)) {
+				}
+			}
+		}
+		// back to the head in the same order, oldest first
+		for (int i = live.size() - 1; i >= 0; i--) {
+			idle.offerFirst(live.get(i));
+			idleCount.incrementAndGet();
+		}
+		if (closed) {
+			// closed while the entries were out, drop them as well
+			close();
+			return;
+		}
+		refill();
+		loop.schedule(new Runnable() {
+
+			public void run() {
+				maintain();
+			}
+		}, MAINTENANCE_INTERVAL);
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Closes all idle connections, connects in progress are closed when
+	 * they complete.
+	 */
+	public void close() {
+		closed = true;
+		Entry entry;
+		while ((entry = idle.pollFirst()) != null) {
+			idleCount.decrementAndGet();
+			close(entry.channel);
+		}
+	}
+
+	private static void close(Closeable closeHandler) {
+		try {
+			if (closeHandler != null) {
+				closeHandler.close();
+			}
+		} catch (IOException e) {
+			logger.debug("close error", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "pool " + idleCount.get() + "/" + target.get() + " hits " + hits.sum() + " misses " + misses.sum();
+	}
+}
@@ -0,0 +1,360 @@
+package org.fengzh.tools.net.core;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous host name resolver with a shared cache. Lookups run on a few
+ * daemon threads, so event loops only read the cache or get a callback and
+ * never block on DNS.
+ * <p>
+ * The JDK does not expose record TTLs, entries live as long as the JVM
+ * address cache would keep them: "networkaddress.cache.ttl" (30 seconds when
+ * unset) and "networkaddress.cache.negative.ttl" (10 seconds), overridden by
+ * system properties dnsTtl and dnsNegativeTtl in seconds. Entries used within
+ * the last TTL are refreshed in the background when they expire, a failed
+ * refresh keeps the last known address.
+ */
+public class DnsResolver implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(DnsResolver.class.getName());
+
+	private static final long SWEEP_INTERVAL = 1000;
+
+	// entries unused for so long are dropped
+	private static final long MAX_UNUSED = TimeUnit.HOURS.toNanos(1);
+
+	private static DnsResolver defaultResolver;
+
+	/**
+	 * Gets the result of a lookup, an unresolved address if the host is
+	 * unknown.
+	 */
+	public static interface ResolveHandler {
+
+		public void resolved(InetSocketAddress address);
+
+	}
+
+	private static final class Entry {
+
+		private final String host;
+		// last known address, null if never resolved
+		private volatile InetAddress address;
+		private volatile long expires;
+		private volatile long lastUsed = System.nanoTime();
+		// guarded by this
+		private boolean resolving = false;
+		private List<Runnable> waiters;
+
+		Entry(String host) {
+			this.host = host;
+			this.expires = lastUsed;
+		}
+
+		boolean isExpired(long now) {
+			return now - expires >= 0;
+		}
+	}
+
+	private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+	private final ScheduledThreadPoolExecutor executor;
+	private final long ttlNanos;
+	private final long negativeTtlNanos;
+
+	/**
+	 * @return resolver shared by all servers of the JVM
+	 */
+	public static synchronized DnsResolver getDefault() {
+		if (defaultResolver == null) {
+			defaultResolver = new DnsResolver(Integer.getInteger("dnsThreads", 4));
+		}
+		return defaultResolver;
+	}
+
+	/**
+	 * @param threads
+	 *            lookups running in parallel
+	 */
+	public DnsResolver(int threads) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("Resolver threads should be positive.");
+		ttlNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("dnsTtl", securityTtl("networkaddress.cache.ttl", 30)));
+		negativeTtlNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("dnsNegativeTtl",
+				securityTtl("networkaddress.cache.negative.ttl", 10)));
+		executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+
+			private final AtomicInteger index = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "dns-resolver-" + index.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+
+			public void run() {
+				sweep();
+			}
+		}, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private static int securityTtl(String name, int defaultValue) {
+		try {
+			String value = Security.getProperty(name);
+			return value == null ? defaultValue : Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Never blocks. Expired entries are returned as they are while a refresh
+	 * is started.
+	 *
+	 * @return cached address, unresolved if the host was not resolved yet (a
+	 *         lookup is started then) or is unknown
+	 */
+	public InetSocketAddress getCached(String host, int port) {
+		Entry entry = entry(host);
+		long now = System.nanoTime();
+		entry.lastUsed = now;
+		InetAddress address = entry.address;
+		if (entry.isExpired(now)) {
+			refresh(entry);
+		}
+		return toSocketAddress(entry, address, port);
+	}
+
+	/**
+	 * Never blocks, for addresses resolved once and kept, so they follow
+	 * DNS changes once the entry refreshes.
+	 *
+	 * @return cached address of the host of the given address, the given
+	 *         address if the host is not resolved
+	 */
+	public InetSocketAddress getCached(InetSocketAddress address) {
+		InetSocketAddress cached = getCached(address.getHostString(), address.getPort());
+		if (cached.isUnresolved() || cached.equals(address)) {
+			return address;
+		}
+		return cached;
+	}
+
+	/**
+	 * Calls the handler right away in the caller thread if the host is
+	 * cached, otherwise in the executor once the lookup is done.
+	 *
+	 * @param executor
+	 *            runs the handler for a lookup, typically the caller's
+	 *            {@link EventLoop}
+	 */
+	public void resolve(final String host, final int port, final Executor executor, final ResolveHandler handler) {
+		final Entry entry = entry(host);
+		long now = System.nanoTime();
+		entry.lastUsed = now;
+		boolean expired = entry.isExpired(now);
+		boolean cached = true;
+		synchronized (entry) {
+			if (entry.address == null && (expired || entry.resolving)) {
+				if (entry.waiters == null) {
+					entry.waiters = new ArrayList<Runnable>(2);
+				}
+				entry.waiters.add(new Runnable() {
+
+					public void run() {
+						executor.execute(new Runnable() {
+
+							public void run() {
+								handler.resolved(toSocketAddress(entry, entry.address, port));
+							}
+						});
+					}
+				});
+				cached = false;
+			}
+		}
+		if (expired) {
+			refresh(entry);
+		}
+		if (cached) {
+			// stale entries are used while refreshing
+			handler.resolved(toSocketAddress(entry, entry.address, port));
+		}
+	}
+
+	/**
+	 * Resolves all addresses in parallel and waits for the results, for
+	 * startup code only and never from an event loop.
+	 *
+	 * @return resolved addresses in the same order, unknown hosts stay
+	 *         unresolved
+	 */
+	public InetSocketAddress[] resolveAll(InetSocketAddress[] addresses) {
+		final InetSocketAddress[] results = new InetSocketAddress[addresses.length];
+		final CountDownLatch done = new CountDownLatch(addresses.length);
+		Executor direct = new Executor() {
+
+			public void execute(Runnable command) {
+				command.run();
+			}
+		};
+		for (int i = 0; i < addresses.length; i++) {
+			final int index = i;
+			resolve(addresses[i].getHostString(), addresses[i].getPort(), direct, new ResolveHandler() {
+
+				public void resolved(InetSocketAddress address) {
+					results[index] = address;
+					done.countDown();
+				}
+			});
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return results;
+	}
+
+	private Entry entry(String host) {
+		Entry entry = cache.get(host);
+		if (entry == null) {
+			Entry created = new Entry(host);
+			entry = cache.putIfAbsent(host, created);
+			if (entry == null) {
+				entry = created;
+			}
+		}
+		return entry;
+	}
+
+	private InetSocketAddress toSocketAddress(Entry entry, InetAddress address, int port) {
+		if (address == null) {
+			return InetSocketAddress.createUnresolved(entry.host, port);
+		}
+		return new InetSocketAddress(address, port);
+	}
+
+	private void refresh(final Entry entry) {
+		synchronized (entry) {
+			if (entry.resolving)
+				return;
+			entry.resolving = true;
+		}
+		try {
+			executor.execute(new Runnable() {
+
+				public void run() {
+					lookup(entry);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// closed, give up waiting handlers
+			logger.debug("Resolver is closed, cannot resolve {}", entry.host);
+			completed(entry, entry.address, negativeTtlNanos);
+		}
+	}
+
+	private void lookup(Entry entry) {
+		long start = System.nanoTime();
+		InetAddress address;
+		long ttl;
+		try {
+			address = InetAddress.getByName(entry.host);
+			ttl = ttlNanos;
+			if (!address.equals(entry.address)) {
+				logger.info("Resolved {} to {} in {} ms", new Object[] { entry.host, address.getHostAddress(),
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+			}
+		} catch (UnknownHostException e) {
+			address = entry.address;
+			ttl = negativeTtlNanos;
+			if (address == null) {
+				logger.warn("Cannot resolve host: {}", entry.host);
+			} else {
+				logger.warn("Cannot refresh host {}, keep using {}", entry.host, address.getHostAddress());
+			}
+		} catch (RuntimeException e) {
+			address = entry.address;
+			ttl = negativeTtlNanos;
+			logger.warn("Resolve host " + entry.host + " got error", e);
+		}
+		completed(entry, address, ttl);
+	}
+
+	private void completed(Entry entry, InetAddress address, long ttl) {
+		List<Runnable> waiters;
+		synchronized (entry) {
+			entry.address = address;
+			// negative ttl means cache forever like the JVM cache, far enough
+			// ahead without overflowing nanoTime comparisons
+			entry.expires = System.nanoTime() + (ttl < 0 ? Long.MAX_VALUE / 4 : ttl);
+			entry.resolving = false;
+			waiters = entry.waiters;
+			entry.waiters = null;
+		}
+		if (waiters != null) {
+			for (Runnable waiter : waiters) {
+				try {
+					waiter.run();
+				} catch (RuntimeException e) {
+					logger.warn("Resolve handler got error", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Refreshes expired entries which are in use, drops long unused ones.
+	 */
+	private void sweep() {
+		long now = System.nanoTime();
+		for (Iterator<Entry> it = cache.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (now - entry.lastUsed > MAX_UNUSED) {
+				synchronized (entry) {
+					if (!entry.resolving) {
+						it.remove();
+					}
+				}
+			} else if (entry.isExpired(now) && now - entry.lastUsed <= Math.max(ttlNanos, negativeTtlNanos)) {
+				refresh(entry);
+			}
+		}
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+}
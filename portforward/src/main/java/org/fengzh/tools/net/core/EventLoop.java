@@ -0,0 +1,208 @@
+package org.fengzh.tools.net.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single selector thread dispatching ready keys to the {@link ChannelHandler}
+ * attached to them. Work from other threads is handed over with
+ * {@link #execute(Runnable)}, so channels are only registered from the loop
+ * thread itself.
+ */
+public class EventLoop implements Runnable, Executor {
+
+	private static final Logger logger = LoggerFactory.getLogger(EventLoop.class.getName());
+
+	private final Selector selector;
+	private final String name;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final TimerWheel timer;
+	private volatile Thread thread;
+	private volatile boolean running = true;
+	// loop clock, refreshed on every wakeup
+	private long now = clock();
+
+	public EventLoop(String name) throws IOException {
+		this.name = name;
+		this.selector = Selector.open();
+		this.timer = new TimerWheel(Long.getLong("timerTick", 100), 512, now);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Selector getSelector() {
+		return selector;
+	}
+
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	public synchronized void start() {
+		if (thread != null)
+			throw new IllegalStateException("Event loop was started");
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	/**
+	 * Runs the task on the loop thread in next iteration.
+	 */
+	public void execute(Runnable task) {
+		tasks.offer(task);
+		if (!inEventLoop()) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Registers channel to this loop, directly if called from the loop thread
+	 * (or before the loop is started), otherwise in the loop thread later.
+	 */
+	public void register(final SelectableChannel channel, final int ops, final Object attachment)
+			throws IOException {
+		if (thread == null || inEventLoop()) {
+			channel.register(selector, ops, attachment);
+		} else {
+			execute(new Runnable() {
+
+				public void run() {
+					try {
+						channel.register(selector, ops, attachment);
+					} catch (IOException e) {
+						logger.error("Cannot register channel " + channel, e);
+						close(channel);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs the task on the loop thread after the delay, must be called in the
+	 * loop thread.
+	 */
+	public TimerWheel.Timeout schedule(Runnable task, long delayMillis) {
+		return timer.schedule(task, delayMillis, now);
+	}
+
+	/**
+	 * @return monotonic time in milliseconds of current loop iteration
+	 */
+	public long currentTimeMillis() {
+		return now;
+	}
+
+	private static long clock() {
+		return System.nanoTime() / 1000000L;
+	}
+
+	public void run() {
+		while (running && selector.isOpen()) {
+			int count;
+			try {
+				logger.trace("Selecting events.....");
+				if (!tasks.isEmpty()) {
+					count = selector.selectNow();
+				} else {
+					// wake up for the next timer deadline (0 if none)
+					count = selector.select(timer.nextDelay(clock()));
+				}
+				now = clock();
+			} catch (IOException e) {
+				logger.error("Cannot select new events", e);
+				logger.info("Stopping event loop due to select error.");
+				break;
+			}
+			if (!running) {
+				break;
+			}
+			if (count != 0) {
+				processSelectedKeys();
+			}
+			runTasks();
+			timer.expire(now);
+		}
+		logger.info("Normally stop event loop {}...", name);
+		if (selector.isOpen()) {
+			for (Iterator<SelectionKey> keys = selector.keys().iterator(); keys.hasNext();) {
+				close(keys.next().channel());
+			}
+			close(selector);
+		}
+		logger.info("All channels of {} are closed.", name);
+	}
+
+	private void processSelectedKeys() {
+		for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext();) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			if (!key.isValid())
+				continue;
+			Object attachment = key.attachment();
+			if (attachment instanceof ChannelHandler) {
+				try {
+					((ChannelHandler) attachment).onProcessing(key);
+				} catch (IOException e) {
+					logger.warn("processing got error", e);
+				} catch (RuntimeException e) {
+					logger.error("processing got unexpected error", e);
+				}
+			} else {
+				logger.error("unknown key processing with attachement: {}", attachment);
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.error("task execution got error", e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the loop, all registered channels are closed by the loop thread.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+		if (thread == null) {
+			close(selector);
+		}
+	}
+
+	private static void close(Selector selector) {
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.debug("close error", e);
+		}
+	}
+
+	private static void close(Closeable closeHandler) {
+		try {
+			if (closeHandler != null) {
+				closeHandler.close();
+			}
+		} catch (IOException e) {
+			logger.debug("close error", e);
+		}
+	}
+}
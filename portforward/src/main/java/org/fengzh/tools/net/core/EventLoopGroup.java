@@ -0,0 +1,323 @@
+package org.fengzh.tools.net.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed set of {@link EventLoop} threads. Connections accepted by a bound
+ * server channel are spread round-robin across the loops.
+ */
+public class EventLoopGroup implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(EventLoopGroup.class.getName());
+
+	/**
+	 * Milliseconds accepting pauses after an accept error, system property
+	 * acceptRetryDelay (1000) by default. Running out of file descriptors
+	 * fails every accept until some connections are closed.
+	 */
+	static final long ACCEPT_RETRY_DELAY = Integer.getInteger("acceptRetryDelay", 1000);
+
+	/**
+	 * Receives accepted connections in the loop thread which owns them from
+	 * now on.
+	 */
+	public static interface AcceptHandler {
+
+		public void accepted(SocketChannel channel, EventLoop loop) throws IOException;
+
+	}
+
+	private final EventLoop[] loops;
+	private final AtomicInteger index = new AtomicInteger();
+	private boolean started = false;
+	private volatile int acceptBudget = Integer.getInteger("acceptBudget", 64);
+
+	public EventLoopGroup(String name) throws IOException {
+		this(name, Integer.getInteger("ioThreads", Runtime.getRuntime().availableProcessors()));
+	}
+
+	public EventLoopGroup(String name, int threads) throws IOException {
+		if (threads <= 0)
+			throw new IllegalArgumentException("Event loop threads should be positive.");
+		loops = new EventLoop[threads];
+		try {
+			for (int i = 0; i < threads; i++) {
+				loops[i] = new EventLoop(name + "-" + i);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public synchronized void start() {
+		if (started)
+			return;
+		for (EventLoop loop : loops) {
+			loop.start();
+		}
+		started = true;
+	}
+
+	public EventLoop next() {
+		return loops[nextIndex()];
+	}
+
+	private int nextIndex() {
+		return (index.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+	}
+
+	public int size() {
+		return loops.length;
+	}
+
+	public EventLoop get(int i) {
+		return loops[i];
+	}
+
+	public int getAcceptBudget() {
+		return acceptBudget;
+	}
+
+	/**
+	 * @param acceptBudget
+	 *            connections accepted from one listener per wakeup before
+	 *            other keys get their turn, system property acceptBudget (64)
+	 *            by default
+	 */
+	public void setAcceptBudget(int acceptBudget) {
+		if (acceptBudget <= 0)
+			throw new IllegalArgumentException("Accept budget should be positive.");
+		this.acceptBudget = acceptBudget;
+	}
+
+	/**
+	 * Starts accepting connections from the server channel. The accept key is
+	 * registered to one loop, accepted connections are handed over to the next
+	 * loop in turn.
+	 */
+	public void bind(ServerSocketChannel serverChannel, AcceptHandler handler) throws IOException {
+		bind(serverChannel, handler, null, null);
+	}
+
+	/**
+	 * Starts accepting connections from the server channel in the given loop
+	 * which also keeps the accepted connections. Meant for listeners sharing
+	 * a port with SO_REUSEPORT, where the kernel already spreads connections.
+	 */
+	public void bind(ServerSocketChannel serverChannel, AcceptHandler handler, EventLoop loop) throws IOException {
+		bind(serverChannel, handler, loop, null);
+	}
+
+	/**
+	 * @param loop
+	 *            loop accepting and keeping the connections, <code>null</code>
+	 *            to accept in any loop and spread connections over the group
+	 * @param stats
+	 *            gets the accept batch sizes, may be <code>null</code>
+	 */
+	public void bind(ServerSocketChannel serverChannel, AcceptHandler handler, EventLoop loop, AcceptStats stats)
+			throws IOException {
+		serverChannel.configureBlocking(false);
+		EventLoop acceptLoop = loop != null ? loop : next();
+		acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor(handler, loop, acceptLoop, stats));
+	}
+
+	/**
+	 * Opens server channels bound to the same address with the acceptors and
+	 * backlog of the options. More than one channel is bound with
+	 * SO_REUSEPORT, only one is opened if the platform does not support it.
+	 */
+	public static ServerSocketChannel[] openServerChannels(InetSocketAddress address, ChannelOptions options)
+			throws IOException {
+		int count = options.getAcceptors();
+		if (count > 1 && !isReusePortSupported()) {
+			logger.warn("SO_REUSEPORT is not supported, use single listener on {}", address);
+			count = 1;
+		}
+		ServerSocketChannel[] channels = new ServerSocketChannel[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				channels[i] = ServerSocketChannel.open();
+				if (count > 1) {
+					channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				channels[i].socket().bind(address, options.getBacklog());
+			}
+		} catch (IOException e) {
+			for (ServerSocketChannel channel : channels) {
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException ioe) {
+						logger.debug("close error", ioe);
+					}
+				}
+			}
+			throw e;
+		}
+		return channels;
+	}
+
+	private static boolean isReusePortSupported() throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} finally {
+			channel.close();
+		}
+	}
+
+	public synchronized void close() {
+		for (EventLoop loop : loops) {
+			if (loop != null) {
+				loop.shutdown();
+			}
+		}
+		started = false;
+	}
+
+	/**
+	 * Drains the backlog up to the budget in one wakeup, then hands the
+	 * connections over with one task per target loop.
+	 */
+	private class Acceptor implements ChannelHandler {
+
+		private final AcceptHandler handler;
+		// loop keeping accepted connections, null to spread over the group
+		private final EventLoop owner;
+		// loop the accept key is registered to
+		private final EventLoop acceptLoop;
+		private final AcceptStats stats;
+		// logged the first error of a burst, loop thread only
+		private boolean failing = false;
+		private SelectionKey pausedKey;
+		// created up front, loading a class fails once descriptors run out
+		private final Runnable resume = new Runnable() {
+
+			public void run() {
+				SelectionKey key = pausedKey;
+				pausedKey = null;
+				if (key.isValid()) {
+					key.interestOps(SelectionKey.OP_ACCEPT);
+				}
+			}
+		};
+		// reused per wakeup, only touched in the accepting loop
+		private SocketChannel[] batch = new SocketChannel[0];
+		private int[] targets = new int[0];
+
+		Acceptor(AcceptHandler handler, EventLoop owner, EventLoop acceptLoop, AcceptStats stats) {
+			this.handler = handler;
+			this.owner = owner;
+			this.acceptLoop = acceptLoop;
+			this.stats = stats;
+		}
+
+		public void onProcessing(SelectionKey key) throws IOException {
+			if (!key.isAcceptable())
+				return;
+			ServerSocketChannel server = (ServerSocketChannel) key.channel();
+			int budget = acceptBudget;
+			if (batch.length < budget) {
+				batch = new SocketChannel[budget];
+				targets = new int[budget];
+			}
+			int count = 0;
+			try {
+				while (count < budget) {
+					SocketChannel channel = server.accept();
+					if (channel == null)
+						break;
+					batch[count++] = channel;
+				}
+				if (failing) {
+					failing = false;
+					logger.info("Accepting again on {}", server);
+				}
+			} catch (IOException e) {
+				if (!failing) {
+					failing = true;
+					logger.error("Cannot accept new connection, pause accepting for " + ACCEPT_RETRY_DELAY + " ms", e);
+				} else {
+					logger.debug("Cannot accept new connection: {}", e.toString());
+				}
+				pause(key);
+			}
+			if (stats != null) {
+				stats.record(count, count == budget);
+			}
+			if (count == 0)
+				return;
+			if (owner != null) {
+				dispatch(owner, Arrays.copyOf(batch, count));
+			} else {
+				// group the batch by target loop, one task per loop
+				int[] loopCounts = new int[loops.length];
+				for (int i = 0; i < count; i++) {
+					targets[i] = nextIndex();
+					loopCounts[targets[i]]++;
+				}
+				for (int l = 0; l < loops.length; l++) {
+					if (loopCounts[l] == 0)
+						continue;
+					SocketChannel[] channels = new SocketChannel[loopCounts[l]];
+					for (int i = 0, j = 0; i < count; i++) {
+						if (targets[i] == l) {
+							channels[j++] = batch[i];
+						}
+					}
+					dispatch(loops[l], channels);
+				}
+			}
+			Arrays.fill(batch, 0, count, null);
+		}
+
+		/**
+		 * Stops selecting the level triggered accept key for a while, it would
+		 * fire again at once as long as accepting fails.
+		 */
+		private void pause(SelectionKey key) {
+			key.interestOps(0);
+			pausedKey = key;
+			acceptLoop.schedule(resume, ACCEPT_RETRY_DELAY);
+		}
+
+		private void dispatch(final EventLoop loop, final SocketChannel[] channels) {
+			Runnable task = new Runnable() {
+
+				public void run() {
+					for (SocketChannel channel : channels) {
+						try {
+							channel.configureBlocking(false);
+							handler.accepted(channel, loop);
+						} catch (IOException e) {
+							logger.warn("Cannot handle accepted connection", e);
+							try {
+								channel.close();
+							} catch (IOException ioe) {
+								logger.debug("close error", ioe);
+							}
+						}
+					}
+				}
+			};
+			if (loop.inEventLoop()) {
+				task.run();
+			} else {
+				loop.execute(task);
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package org.fengzh.tools.net.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-bucketed histogram of microsecond values, in the style of HdrHistogram:
+ * every power of two range is split into 32 linear sub-buckets, so any
+ * recorded value is known within about 3%. Recording is a single atomic
+ * increment without allocation.
+ * <p>
+ * Percentiles cover the last completed window plus the current one (one to
+ * two windows of data), windows are rotated lazily when percentiles are read.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	// values up to 2^36 us (about 19 hours)
+	private static final int MAX_EXPONENT = 36;
+
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+	private static final long DEFAULT_WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+	private final LatencyHistogram parent;
+
+	private final long windowNanos;
+
+	private final LongAdder count = new LongAdder();
+
+	private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+
+	private AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+
+	private long windowStart = System.nanoTime();
+
+	public LatencyHistogram() {
+		this(null);
+	}
+
+	/**
+	 * @param parent
+	 *            histogram which gets all values of this one too, may be
+	 *            <code>null</code>
+	 */
+	public LatencyHistogram(LatencyHistogram parent) {
+		this(parent, DEFAULT_WINDOW);
+	}
+
+	public LatencyHistogram(LatencyHistogram parent, long windowNanos) {
+		this.parent = parent;
+		this.windowNanos = windowNanos;
+	}
+
+	public void record(long micros) {
+		current.incrementAndGet(indexOf(micros));
+		count.increment();
+		if (parent != null) {
+			parent.record(micros);
+		}
+	}
+
+	public void recordNanos(long nanos) {
+		record(nanos / 1000L);
+	}
+
+	/**
+	 * @return count of all recorded values since creation
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @param percentile
+	 *            0 ~ 100
+	 * @return value in milliseconds, 0 if nothing recorded in recent windows
+	 */
+	public synchronized double getPercentile(double percentile) {
+		long[] counts = snapshot();
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max((long) Math.ceil(percentile / 100 * total), 1);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return toMillis(valueOf(i));
+			}
+		}
+		return toMillis(valueOf(counts.length - 1));
+	}
+
+	/**
+	 * @return the highest recorded value in recent windows in milliseconds
+	 */
+	public synchronized double getMax() {
+		long[] counts = snapshot();
+		for (int i = counts.length - 1; i >= 0; i--) {
+			if (counts[i] > 0) {
+				return toMillis(valueOf(i));
+			}
+		}
+		return 0;
+	}
+
+	private long[] snapshot() {
+		long now = System.nanoTime();
+		if (now - windowStart >= windowNanos) {
+			AtomicLongArray reused = previous;
+			for (int i = 0; i < BUCKETS; i++) {
+				reused.set(i, 0);
+			}
+			previous = current;
+			current = reused;
+			windowStart = now;
+		}
+		long[] counts = new long[BUCKETS];
+		AtomicLongArray c = current;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = c.get(i) + previous.get(i);
+		}
+		return counts;
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_COUNT) {
+			return value < 0 ? 0 : (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	/**
+	 * @return middle value of the bucket
+	 */
+	static long valueOf(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_COUNT - 1;
+		long low = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+		return low + ((1L << shift) >> 1);
+	}
+
+	private static double toMillis(long micros) {
+		return micros / 1000.0;
+	}
+}
@@ -0,0 +1,111 @@
+package org.fengzh.tools.net.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Event counter with exponentially weighted 1, 5 and 15 minute rates (same
+ * decay as Unix load average). Marking only touches a {@link LongAdder};
+ * the rates are brought up to date lazily when they are read.
+ */
+public class RateMeter {
+
+	private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+	private static final double TICK_SECONDS = 5.0;
+
+	private static final double M1_ALPHA = 1 - Math.exp(-TICK_SECONDS / 60);
+
+	private static final double M5_ALPHA = 1 - Math.exp(-TICK_SECONDS / 60 / 5);
+
+	private static final double M15_ALPHA = 1 - Math.exp(-TICK_SECONDS / 60 / 15);
+
+	private final RateMeter parent;
+
+	private final LongAdder uncounted = new LongAdder();
+
+	private volatile long count = 0;
+
+	private volatile long lastTick = System.nanoTime();
+
+	private boolean initialized = false;
+
+	private double m1Rate;
+
+	private double m5Rate;
+
+	private double m15Rate;
+
+	public RateMeter() {
+		this(null);
+	}
+
+	/**
+	 * @param parent
+	 *            meter which gets all marks of this one too, may be
+	 *            <code>null</code>
+	 */
+	public RateMeter(RateMeter parent) {
+		this.parent = parent;
+	}
+
+	public void mark() {
+		mark(1);
+	}
+
+	public void mark(long n) {
+		uncounted.add(n);
+		if (parent != null) {
+			parent.mark(n);
+		}
+	}
+
+	public long getCount() {
+		return count + uncounted.sum();
+	}
+
+	/**
+	 * @return events per second
+	 */
+	public synchronized double getOneMinuteRate() {
+		tickIfNecessary();
+		return m1Rate;
+	}
+
+	public synchronized double getFiveMinuteRate() {
+		tickIfNecessary();
+		return m5Rate;
+	}
+
+	public synchronized double getFifteenMinuteRate() {
+		tickIfNecessary();
+		return m15Rate;
+	}
+
+	private void tickIfNecessary() {
+		long age = System.nanoTime() - lastTick;
+		if (age >= TICK_INTERVAL) {
+			long ticks = age / TICK_INTERVAL;
+			lastTick += ticks * TICK_INTERVAL;
+			for (long i = 0; i < ticks; i++) {
+				tick();
+			}
+		}
+	}
+
+	private void tick() {
+		long n = uncounted.sumThenReset();
+		count += n;
+		double instantRate = n / TICK_SECONDS;
+		if (initialized) {
+			m1Rate += M1_ALPHA * (instantRate - m1Rate);
+			m5Rate += M5_ALPHA * (instantRate - m5Rate);
+			m15Rate += M15_ALPHA * (instantRate - m15Rate);
+		} else {
+			m1Rate = instantRate;
+			m5Rate = instantRate;
+			m15Rate = instantRate;
+			initialized = true;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package org.fengzh.tools.net.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel driven by the owner {@link EventLoop}. Scheduling and
+ * cancelling are O(1); the loop calls {@link #expire(long)} after each select
+ * and uses {@link #nextDelay(long)} as select timeout.
+ * <p>
+ * Not thread safe, all methods must be called from the owner loop thread.
+ */
+public class TimerWheel {
+
+	private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class.getName());
+
+	public static final class Timeout {
+
+		private final Runnable task;
+		private final long expireTick;
+		private Timeout prev;
+		private Timeout next;
+		// bucket index, -1 when not in the wheel
+		private int bucket = -1;
+		private boolean done = false;
+		private TimerWheel wheel;
+
+		private Timeout(TimerWheel wheel, Runnable task, long expireTick) {
+			this.wheel = wheel;
+			this.task = task;
+			this.expireTick = expireTick;
+		}
+
+		/**
+		 * @return <code>true</code> if the task was still pending
+		 */
+		public boolean cancel() {
+			if (done) {
+				return false;
+			}
+			done = true;
+			if (bucket >= 0) {
+				wheel.remove(this);
+			}
+			return true;
+		}
+
+		public boolean isPending() {
+			return !done;
+		}
+	}
+
+	private final long tickMillis;
+	private final Timeout[] buckets;
+	private final int mask;
+	private final long startTime;
+	// next tick to be processed
+	private long currentTick = 0;
+	private int size = 0;
+
+	/**
+	 * @param tickMillis
+	 *            timer resolution
+	 * @param ticksPerWheel
+	 *            bucket count, rounded up to power of two
+	 * @param now
+	 *            current time of the owner loop
+	 */
+	public TimerWheel(long tickMillis, int ticksPerWheel, long now) {
+		if (tickMillis <= 0)
+			throw new IllegalArgumentException("Tick duration should be positive.");
+		int n = 1;
+		while (n < ticksPerWheel) {
+			n <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.buckets = new Timeout[n];
+		this.mask = n - 1;
+		this.startTime = now;
+	}
+
+	public Timeout schedule(Runnable task, long delayMillis, long now) {
+		long deadline = now + Math.max(delayMillis, 0) - startTime;
+		// round up, never fire before the deadline
+		long expireTick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick);
+		Timeout timeout = new Timeout(this, task, expireTick);
+		int index = (int) (expireTick & mask);
+		timeout.bucket = index;
+		timeout.next = buckets[index];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		buckets[index] = timeout;
+		size++;
+		return timeout;
+	}
+
+	private void remove(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+		size--;
+	}
+
+	/**
+	 * Runs all tasks which deadline is passed.
+	 *
+	 * @return count of expired tasks
+	 */
+	public int expire(long now) {
+		long targetTick = (now - startTime) / tickMillis;
+		int count = 0;
+		while (currentTick <= targetTick && size > 0) {
+			int index = (int) (currentTick & mask);
+			Timeout expired = null;
+			for (Timeout timeout = buckets[index]; timeout != null;) {
+				Timeout next = timeout.next;
+				if (timeout.expireTick <= currentTick) {
+					remove(timeout);
+					timeout.next = expired;
+					expired = timeout;
+				}
+				timeout = next;
+			}
+			// tasks scheduled by expired tasks go to the later ticks
+			currentTick++;
+			while (expired != null) {
+				Timeout next = expired.next;
+				expired.next = null;
+				// may be cancelled by task expired in the same tick
+				if (!expired.done) {
+					expired.done = true;
+					try {
+						expired.task.run();
+					} catch (RuntimeException e) {
+						logger.error("timer task got error", e);
+					}
+					count++;
+				}
+				expired = next;
+			}
+		}
+		if (size == 0 && currentTick <= targetTick) {
+			currentTick = targetTick + 1;
+		}
+		return count;
+	}
+
+	/**
+	 * @return milliseconds until the next non-empty tick, 0 if nothing is
+	 *         scheduled.
+	 */
+	public long nextDelay(long now) {
+		if (size == 0) {
+			return 0;
+		}
+		long tick = currentTick;
+		for (int i = 0; i < buckets.length; i++, tick++) {
+			if (buckets[(int) (tick & mask)] != null) {
+				break;
+			}
+		}
+		return Math.max(startTime + tick * tickMillis - now, 1);
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,233 @@
+package org.fengzh.tools.net.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection and traffic counters of a listener or one of its backends.
+ * Updates of a child (backend) are also applied to its parent (listener),
+ * except accepted connections which are counted on each level separately.
+ * <p>
+ * Bytes sent are read from the local side and sent to remote, bytes
+ * received are read from remote. Rates are per second.
+ * <p>
+ * Connect time is measured from the start of connecting to the remote until
+ * it is established, first byte time from then to the first byte received
+ * from remote, session duration from then until the pair is closed.
+ */
+public class TrafficMetrics implements TrafficMetricsMBean {
+
+	private final TrafficMetrics parent;
+	private final RateMeter accepted = new RateMeter();
+	private final LongAdder active = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder raceAttempts = new LongAdder();
+	private final LongAdder raceCancelled = new LongAdder();
+	private final RateMeter bytesSent;
+	private final RateMeter bytesReceived;
+	private final LatencyHistogram connectTime;
+	private final LatencyHistogram firstByteTime;
+	private final LatencyHistogram sessionDuration;
+
+	public TrafficMetrics() {
+		this(null);
+	}
+
+	public TrafficMetrics(TrafficMetrics parent) {
+		this.parent = parent;
+		this.bytesSent = new RateMeter(parent == null ? null : parent.bytesSent);
+		this.bytesReceived = new RateMeter(parent == null ? null : parent.bytesReceived);
+		this.connectTime = new LatencyHistogram(parent == null ? null : parent.connectTime);
+		this.firstByteTime = new LatencyHistogram(parent == null ? null : parent.firstByteTime);
+		this.sessionDuration = new LatencyHistogram(parent == null ? null : parent.sessionDuration);
+	}
+
+	public void connectionAccepted() {
+		accepted.mark();
+	}
+
+	public void connectionOpened() {
+		active.increment();
+		if (parent != null) {
+			parent.connectionOpened();
+		}
+	}
+
+	public void connectionClosed() {
+		active.decrement();
+		if (parent != null) {
+			parent.connectionClosed();
+		}
+	}
+
+	public void connectionFailed() {
+		failed.increment();
+		if (parent != null) {
+			parent.connectionFailed();
+		}
+	}
+
+	/**
+	 * A racing connect was started, the connection itself is only counted
+	 * once the attempt has connected or failed.
+	 */
+	public void raceAttemptStarted() {
+		raceAttempts.increment();
+		if (parent != null) {
+			parent.raceAttemptStarted();
+		}
+	}
+
+	/**
+	 * A racing connect was dropped because another attempt won.
+	 */
+	public void raceAttemptCancelled() {
+		raceCancelled.increment();
+		if (parent != null) {
+			parent.raceAttemptCancelled();
+		}
+	}
+
+	public LatencyHistogram getConnectTime() {
+		return connectTime;
+	}
+
+	public LatencyHistogram getFirstByteTime() {
+		return firstByteTime;
+	}
+
+	public LatencyHistogram getSessionDuration() {
+		return sessionDuration;
+	}
+
+	RateMeter getBytesSentMeter() {
+		return bytesSent;
+	}
+
+	RateMeter getBytesReceivedMeter() {
+		return bytesReceived;
+	}
+
+	public long getAcceptedConnections() {
+		return accepted.getCount();
+	}
+
+	public long getActiveConnections() {
+		return active.sum();
+	}
+
+	public long getFailedConnections() {
+		return failed.sum();
+	}
+
+	public long getRaceAttempts() {
+		return raceAttempts.sum();
+	}
+
+	public long getRaceAttemptsCancelled() {
+		return raceCancelled.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.getCount();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.getCount();
+	}
+
+	public double getConnectionRate1m() {
+		return accepted.getOneMinuteRate();
+	}
+
+	public double getConnectionRate5m() {
+		return accepted.getFiveMinuteRate();
+	}
+
+	public double getConnectionRate15m() {
+		return accepted.getFifteenMinuteRate();
+	}
+
+	public double getBytesSentRate1m() {
+		return bytesSent.getOneMinuteRate();
+	}
+
+	public double getBytesSentRate5m() {
+		return bytesSent.getFiveMinuteRate();
+	}
+
+	public double getBytesSentRate15m() {
+		return bytesSent.getFifteenMinuteRate();
+	}
+
+	public double getBytesReceivedRate1m() {
+		return bytesReceived.getOneMinuteRate();
+	}
+
+	public double getBytesReceivedRate5m() {
+		return bytesReceived.getFiveMinuteRate();
+	}
+
+	public double getBytesReceivedRate15m() {
+		return bytesReceived.getFifteenMinuteRate();
+	}
+
+	public double getConnectTimeP50() {
+		return connectTime.getPercentile(50);
+	}
+
+	public double getConnectTimeP90() {
+		return connectTime.getPercentile(90);
+	}
+
+	public double getConnectTimeP99() {
+		return connectTime.getPercentile(99);
+	}
+
+	public double getConnectTimeP999() {
+		return connectTime.getPercentile(99.9);
+	}
+
+	public double getConnectTimeMax() {
+		return connectTime.getMax();
+	}
+
+	public double getFirstByteTimeP50() {
+		return firstByteTime.getPercentile(50);
+	}
+
+	public double getFirstByteTimeP90() {
+		return firstByteTime.getPercentile(90);
+	}
+
+	public double getFirstByteTimeP99() {
+		return firstByteTime.getPercentile(99);
+	}
+
+	public double getFirstByteTimeP999() {
+		return firstByteTime.getPercentile(99.9);
+	}
+
+	public double getFirstByteTimeMax() {
+		return firstByteTime.getMax();
+	}
+
+	public double getSessionDurationP50() {
+		return sessionDuration.getPercentile(50);
+	}
+
+	public double getSessionDurationP90() {
+		return sessionDuration.getPercentile(90);
+	}
+
+	public double getSessionDurationP99() {
+		return sessionDuration.getPercentile(99);
+	}
+
+	public double getSessionDurationP999() {
+		return sessionDuration.getPercentile(99.9);
+	}
+
+	public double getSessionDurationMax() {
+		return sessionDuration.getMax();
+	}
+}
@@ -0,0 +1,69 @@
+package org.fengzh.tools.net.core;
+
+public interface TrafficMetricsMBean {
+
+	public long getAcceptedConnections();
+
+	public long getActiveConnections();
+
+	public long getFailedConnections();
+
+	public long getRaceAttempts();
+
+	public long getRaceAttemptsCancelled();
+
+	public long getBytesSent();
+
+	public long getBytesReceived();
+
+	public double getConnectionRate1m();
+
+	public double getConnectionRate5m();
+
+	public double getConnectionRate15m();
+
+	public double getBytesSentRate1m();
+
+	public double getBytesSentRate5m();
+
+	public double getBytesSentRate15m();
+
+	public double getBytesReceivedRate1m();
+
+	public double getBytesReceivedRate5m();
+
+	public double getBytesReceivedRate15m();
+
+	// latency percentiles in milliseconds over the last one to two minutes
+
+	public double getConnectTimeP50();
+
+	public double getConnectTimeP90();
+
+	public double getConnectTimeP99();
+
+	public double getConnectTimeP999();
+
+	public double getConnectTimeMax();
+
+	public double getFirstByteTimeP50();
+
+	public double getFirstByteTimeP90();
+
+	public double getFirstByteTimeP99();
+
+	public double getFirstByteTimeP999();
+
+	public double getFirstByteTimeMax();
+
+	public double getSessionDurationP50();
+
+	public double getSessionDurationP90();
+
+	public double getSessionDurationP99();
+
+	public double getSessionDurationP999();
+
+	public double getSessionDurationMax();
+
+}
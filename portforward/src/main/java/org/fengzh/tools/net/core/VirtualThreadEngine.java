@@ -0,0 +1,142 @@
+package org.fengzh.tools.net.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Blocking alternative to {@link EventLoopGroup}: every accepted connection
+ * and every forwarded direction runs on its own virtual thread with plain
+ * blocking channel calls.
+ */
+public class VirtualThreadEngine implements Executor, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(VirtualThreadEngine.class.getName());
+
+	/**
+	 * Receives accepted connections on a new virtual thread, blocking calls
+	 * are fine.
+	 */
+	public static interface ConnectionHandler {
+
+		public void accepted(SocketChannel channel, VirtualThreadEngine engine) throws IOException;
+
+	}
+
+	private final ThreadFactory threadFactory;
+	private final Set<Closeable> connections = ConcurrentHashMap.newKeySet();
+	private final Set<Thread> acceptors = ConcurrentHashMap.newKeySet();
+	private volatile boolean running = true;
+
+	public VirtualThreadEngine(String name) {
+		threadFactory = Thread.ofVirtual().name(name + "-", 0).factory();
+	}
+
+	public void execute(Runnable task) {
+		threadFactory.newThread(task).start();
+	}
+
+	/**
+	 * Starts accepting connections from the server channel on a virtual
+	 * thread, each connection is handled on a thread of its own.
+	 */
+	public void bind(final ServerSocketChannel serverChannel, final ConnectionHandler handler) throws IOException {
+		serverChannel.configureBlocking(true);
+		Thread acceptor = threadFactory.newThread(new Runnable() {
+
+			public void run() {
+				accept(serverChannel, handler);
+			}
+		});
+		acceptors.add(acceptor);
+		acceptor.start();
+	}
+
+	private void accept(ServerSocketChannel serverChannel, final ConnectionHandler handler) {
+		// logged the first error of a burst
+		boolean failing = false;
+		while (running) {
+			final SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				if (!failing) {
+					failing = true;
+					logger.error("Cannot accept new connection, pause accepting for "
+							+ EventLoopGroup.ACCEPT_RETRY_DELAY + " ms", e);
+				} else {
+					logger.debug("Cannot accept new connection: {}", e.toString());
+				}
+				// out of descriptors fails again at once, do not spin
+				try {
+					Thread.sleep(EventLoopGroup.ACCEPT_RETRY_DELAY);
+				} catch (InterruptedException ie) {
+					break;
+				}
+				continue;
+			}
+			if (failing) {
+				failing = false;
+				logger.info("Accepting again on {}", serverChannel);
+			}
+			execute(new Runnable() {
+
+				public void run() {
+					try {
+						handler.accepted(channel, VirtualThreadEngine.this);
+					} catch (IOException e) {
+						logger.warn("Cannot handle accepted connection", e);
+						close(channel);
+					}
+				}
+			});
+		}
+		logger.info("Stop accepting on {}", serverChannel);
+	}
+
+	void opened(Closeable connection) {
+		connections.add(connection);
+		if (!running) {
+			close(connection);
+		}
+	}
+
+	void closed(Closeable connection) {
+		connections.remove(connection);
+	}
+
+	/**
+	 * Stops accepting and closes all forwarded connections.
+	 */
+	public void close() {
+		running = false;
+		for (Thread acceptor : acceptors) {
+			acceptor.interrupt();
+		}
+		acceptors.clear();
+		for (Closeable connection : connections) {
+			close(connection);
+		}
+	}
+
+	private static void close(Closeable closeHandler) {
+		try {
+			if (closeHandler != null) {
+				closeHandler.close();
+			}
+		} catch (IOException e) {
+			logger.debug("close error", e);
+		}
+	}
+}
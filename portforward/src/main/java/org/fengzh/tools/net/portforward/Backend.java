@@ -0,0 +1,134 @@
+package org.fengzh.tools.net.portforward;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fengzh.tools.net.core.CircuitBreaker;
+import org.fengzh.tools.net.core.ConnectionPool;
+import org.fengzh.tools.net.core.DnsResolver;
+import org.fengzh.tools.net.core.TrafficMetrics;
+
+/**
+ * One remote address of a listener with the state used by the
+ * {@link BalancingStrategy}.
+ */
+public class Backend {
+
+	// weight of the newest sample
+	private static final double ALPHA = 0.3;
+
+	// last known address, refreshed from the resolver cache
+	private volatile InetSocketAddress address;
+	private final TrafficMetrics metrics;
+	// connects in progress, not counted as active connections yet
+	private final AtomicInteger connecting = new AtomicInteger();
+	private final CircuitBreaker breaker = new CircuitBreaker();
+	private volatile ConnectionPool pool;
+	// smoothed connect time in nanoseconds, 0 until first connect
+	private volatile double connectLatency = 0;
+
+	public Backend(InetSocketAddress address, TrafficMetrics metrics) {
+		this.address = address;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return address of the host from the shared {@link DnsResolver} cache,
+	 *         the last known one while the host cannot be resolved
+	 */
+	public InetSocketAddress getAddress() {
+		InetSocketAddress current = DnsResolver.getDefault().getCached(address);
+		address = current;
+		return current;
+	}
+
+	public TrafficMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return <code>false</code> while the circuit breaker is open or probing
+	 */
+	public boolean isAvailable() {
+		return breaker.isAvailable();
+	}
+
+	/**
+	 * Must be called before connecting to a picked backend, refused if
+	 * another thread took the half-open probe meanwhile.
+	 */
+	boolean tryAcquire() {
+		return breaker.tryAcquire();
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * @return warm connections, <code>null</code> if not pooled
+	 */
+	public ConnectionPool getPool() {
+		return pool;
+	}
+
+	void setPool(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * @return active connections plus connects in progress
+	 */
+	public long getLoad() {
+		return metrics.getActiveConnections() + connecting.get();
+	}
+
+	/**
+	 * @return exponentially weighted connect time in milliseconds, 0 if
+	 *         never connected
+	 */
+	public double getConnectLatency() {
+		return connectLatency / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	void connectStarted() {
+		connecting.incrementAndGet();
+	}
+
+	void connectSucceeded(long nanos) {
+		connecting.decrementAndGet();
+		updateLatency(nanos);
+		breaker.recordSuccess();
+	}
+
+	/**
+	 * Failures count as slow connects, the time wasted until failure.
+	 */
+	void connectFailed(long nanos) {
+		connecting.decrementAndGet();
+		updateLatency(nanos);
+		breaker.recordFailure();
+	}
+
+	/**
+	 * The connect lost a race and was dropped, its time so far is a lower
+	 * bound of the connect time.
+	 */
+	void connectCancelled(long nanos) {
+		connecting.decrementAndGet();
+		if (nanos > connectLatency) {
+			updateLatency(nanos);
+		}
+		breaker.release();
+	}
+
+	private synchronized void updateLatency(long nanos) {
+		connectLatency = connectLatency == 0 ? nanos : connectLatency + ALPHA * (nanos - connectLatency);
+	}
+
+	@Override
+	public String toString() {
+		return address.toString();
+	}
+}
@@ -0,0 +1,177 @@
+package org.fengzh.tools.net.portforward;
+
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Built-in {@link BalancingStrategy} implementations.
+ */
+public final class BalancingStrategies {
+
+	/**
+	 * Stays on the current backend until it fails, the original behavior.
+	 */
+	public static final String FAILOVER = "failover";
+
+	public static final String ROUND_ROBIN = "round-robin";
+
+	public static final String LEAST_CONNECTIONS = "least-connections";
+
+	/**
+	 * Lowest exponentially weighted connect time.
+	 */
+	public static final String LEAST_LATENCY = "least-latency";
+
+	/**
+	 * Less loaded of two random backends.
+	 */
+	public static final String POWER_OF_TWO = "power-of-two";
+
+	private BalancingStrategies() {
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the name is unknown
+	 */
+	public static BalancingStrategy create(String name) {
+		if (FAILOVER.equals(name)) {
+			return new Failover();
+		} else if (ROUND_ROBIN.equals(name)) {
+			return new RoundRobin();
+		} else if (LEAST_CONNECTIONS.equals(name)) {
+			return new LeastConnections();
+		} else if (LEAST_LATENCY.equals(name)) {
+			return new LeastLatency();
+		} else if (POWER_OF_TWO.equals(name)) {
+			return new PowerOfTwo();
+		}
+		throw new IllegalArgumentException("Unknown balancing strategy: " + name);
+	}
+
+	private static boolean isEligible(Backend[] backends, int index,
+			BitSet excluded) {
+		return (excluded == null || !excluded.get(index))
+				&& backends[index].isAvailable();
+	}
+
+	private static class Failover implements BalancingStrategy {
+
+		public int select(Backend[] backends, int current, BitSet excluded) {
+			for (int i = 0; i < backends.length; i++) {
+				int index = (current + i) % backends.length;
+				if (isEligible(backends, index, excluded)) {
+					return index;
+				}
+			}
+			return -1;
+		}
+
+		public String getName() {
+			return FAILOVER;
+		}
+	}
+
+	private static class RoundRobin implements BalancingStrategy {
+
+		private final AtomicInteger next = new AtomicInteger();
+
+		public int select(Backend[] backends, int current, BitSet excluded) {
+			int start = next.getAndIncrement() & Integer.MAX_VALUE;
+			for (int i = 0; i < backends.length; i++) {
+				int index = (start + i) % backends.length;
+				if (isEligible(backends, index, excluded)) {
+					return index;
+				}
+			}
+			return -1;
+		}
+
+		public String getName() {
+			return ROUND_ROBIN;
+		}
+	}
+
+	private static class LeastConnections implements BalancingStrategy {
+
+		public int select(Backend[] backends, int current, BitSet excluded) {
+			int best = -1;
+			long bestLoad = Long.MAX_VALUE;
+			// start after the last pick so ties are spread
+			for (int i = 1; i <= backends.length; i++) {
+				int index = (current + i) % backends.length;
+				if (isEligible(backends, index, excluded)) {
+					long load = backends[index].getLoad();
+					if (load < bestLoad) {
+						best = index;
+						bestLoad = load;
+					}
+				}
+			}
+			return best;
+		}
+
+		public String getName() {
+			return LEAST_CONNECTIONS;
+		}
+	}
+
+	private static class LeastLatency implements BalancingStrategy {
+
+		public int select(Backend[] backends, int current, BitSet excluded) {
+			int best = -1;
+			double bestLatency = Double.MAX_VALUE;
+			for (int i = 1; i <= backends.length; i++) {
+				int index = (current + i) % backends.length;
+				if (isEligible(backends, index, excluded)) {
+					// never measured backends are 0 and tried first
+					double latency = backends[index].getConnectLatency();
+					if (latency < bestLatency) {
+						best = index;
+						bestLatency = latency;
+					}
+				}
+			}
+			return best;
+		}
+
+		public String getName() {
+			return LEAST_LATENCY;
+		}
+	}
+
+	private static class PowerOfTwo implements BalancingStrategy {
+
+		public int select(Backend[] backends, int current, BitSet excluded) {
+			int[] available = new int[backends.length];
+			int count = 0;
+			for (int i = 0; i < backends.length; i++) {
+				if (isEligible(backends, i, excluded)) {
+					available[count++] = i;
+				}
+			}
+			if (count <= 1) {
+				return count == 0 ? -1 : available[0];
+			}
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int i = random.nextInt(count);
+			int j = random.nextInt(count - 1);
+			if (j >= i) {
+				j++;
+			}
+			Backend first = backends[available[i]];
+			Backend second = backends[available[j]];
+			long firstLoad = first.getLoad();
+			long secondLoad = second.getLoad();
+			if (firstLoad != secondLoad) {
+				return firstLoad < secondLoad ? available[i] : available[j];
+			}
+			return first.getConnectLatency() <= second.getConnectLatency() ? available[i] : available[j];
+		}
+
+		public String getName() {
+			return POWER_OF_TWO;
+		}
+	}
+}
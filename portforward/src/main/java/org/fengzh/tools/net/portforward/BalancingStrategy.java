@@ -0,0 +1,25 @@
+package org.fengzh.tools.net.portforward;
+
+import java.util.BitSet;
+
+/**
+ * Picks the backend for a new connection. Called concurrently from all
+ * loop threads of the listener.
+ */
+public interface BalancingStrategy {
+
+	/**
+	 * @param backends
+	 *            all backends of the listener, unavailable ones must be
+	 *            skipped
+	 * @param current
+	 *            index of the backend picked last time
+	 * @param excluded
+	 *            indices of backends to skip as well, may be <code>null</code>
+	 * @return index of the picked backend, -1 if none is available
+	 */
+	public int select(Backend[] backends, int current, BitSet excluded);
+
+	public String getName();
+
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
+import org.fengzh.tools.net.core.EventLoopGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,6 +18,9 @@ public class Main {
      * java [App Name] <remote host> <remote port> [<local port>]
      * or
      * java [App Name] @host.txt <remote port> [<local port>]
+     * <p>
+     * Remote ports may be a list and ranges like 80/443/8000-8100, all ports
+     * share one group of event loops.
      * 
      * @param args
      */
@@ -32,12 +36,7 @@ public class Main {
         }
         int[] remotePorts;
         try {
-            int i = 0;
-            String[] strings = args[1].split("/");
-            remotePorts = new int[strings.length];
-            for (String port : strings) {
-                remotePorts[i++] = Integer.parseInt(port);
-            }
+            remotePorts = parsePorts(args[1]);
         } catch (NumberFormatException e) {
             System.err.println("Error: Require Remote Port Number (1 ~ 65535)");
             logger.error("Error Remote Port Number.", e);
@@ -46,11 +45,23 @@ public class Main {
         }
         int[] localPorts = remotePorts;
         final PortForwardServer[] servers = new PortForwardServer[remotePorts.length];
+        final EventLoopGroup eventLoopGroup;
+        try {
+            // one set of loops for all ports, thread count does not grow with ports
+            eventLoopGroup = new EventLoopGroup("portforward");
+        } catch (IOException e) {
+            System.err.println("Error: Cannot open selector: " + e.getMessage());
+            logger.error("Cannot open selector", e);
+            return;
+        }
+        eventLoopGroup.start();
         try {
             for (int i = 0; i < remotePorts.length; i++) {
                 servers[i] = new PortForwardServer(remoteHosts, remotePorts[i], localPorts[i]);
+                servers[i].setEventLoopGroup(eventLoopGroup);
                 servers[i].start();
             }
+            logger.info("Forwarding {} ports on {} event loops", remotePorts.length, eventLoopGroup.size());
         } catch (IOException e) {
             System.err.println("Error: Fail to start Forward Server: " + e.getMessage());
             logger.error("Cannot start forward server due to exception", e);
@@ -67,11 +78,41 @@ public class Main {
                             logger.warn("Stop server error", e);
                         }
                     }
+                    eventLoopGroup.close();
                 }
             }));
         }
     }
 
+    /**
+     * Parses ports separated by "/" or ",", each one a single port or an
+     * inclusive range like 8000-8100. Duplicates are ignored.
+     */
+    static int[] parsePorts(String argument) {
+        Set<Integer> ports = new LinkedHashSet<Integer>();
+        for (String token : argument.split("[/,]")) {
+            token = token.trim();
+            if (token.length() == 0)
+                continue;
+            int dash = token.indexOf('-', 1);
+            int first = Integer.parseInt(dash < 0 ? token : token.substring(0, dash).trim());
+            int last = dash < 0 ? first : Integer.parseInt(token.substring(dash + 1).trim());
+            if (first < 1 || last > 65535 || first > last)
+                throw new NumberFormatException("Invalid port range: " + token);
+            for (int port = first; port <= last; port++) {
+                ports.add(port);
+            }
+        }
+        if (ports.isEmpty())
+            throw new NumberFormatException("No port: " + argument);
+        int[] result = new int[ports.size()];
+        int i = 0;
+        for (int port : ports) {
+            result[i++] = port;
+        }
+        return result;
+    }
+
     private static String[] loadRemoteHosts(String argument) {
     	if (argument.startsWith("@")) {
     		argument=argument.substring(1);
@@ -105,7 +146,7 @@ public class Main {
 
 	public static void verbose() {
         System.err
-                .println("java [App Name] <remote host>[/remote host2/...] <remote port>[/remote port2/...]");
+                .println("java [App Name] <remote host>[/remote host2/...] <remote port>[/remote port2/...|/first-last]");
     }
 
 }
@@ -5,89 +5,211 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
 
+import org.fengzh.tools.net.core.ChannelOptions;
+import org.fengzh.tools.net.core.DnsResolver;
+import org.fengzh.tools.net.core.EventLoopGroup;
+import org.fengzh.tools.net.core.VirtualThreadEngine;
+
 public class PortForwardServer implements Closeable {
 
+	/**
+	 * Selector based engine, the default.
+	 */
+	public static final String ENGINE_NIO = "nio";
+
+	/**
+	 * Blocking engine with a virtual thread per connection direction.
+	 */
+	public static final String ENGINE_VIRTUAL = "virtual";
+
 	private InetSocketAddress[] remoteAddresses;
 	private InetSocketAddress localAddress;
-	private volatile Thread serverThread;
-	private ServerSocketChannel serverChannel;
-	private Selector selector;
-	private ObjectInstance objectInstance;
+	private volatile EventLoopGroup eventLoopGroup;
+	private EventLoopGroup sharedEventLoopGroup;
+	private volatile VirtualThreadEngine virtualThreadEngine;
+	private String engine = System.getProperty("engine", ENGINE_NIO);
+	private String balancing;
+	private ServerSocketChannel[] serverChannels;
+	private ServerWorker serverWorker;
+	private List<ObjectInstance> objectInstances = new ArrayList<ObjectInstance>();
+	private ChannelOptions options = new ChannelOptions();
 
 	public PortForwardServer(String[] remoteHosts, int remotePort, int localPort)
 			throws IllegalArgumentException, UnknownHostException {
 		if (remotePort == 0 || localPort == 0)
 			throw new IllegalArgumentException(
 					"Remote/Local Port value out of range.");
-		remoteAddresses = new InetSocketAddress[remoteHosts.length];
+		InetSocketAddress[] unresolved = new InetSocketAddress[remoteHosts.length];
 		int i = 0;
 		for (String remoteHost : remoteHosts) {
-			remoteAddresses[i++] = new InetSocketAddress(remoteHost, remotePort);
+			unresolved[i++] = InetSocketAddress.createUnresolved(remoteHost, remotePort);
 		}
+		// all hosts in parallel instead of one lookup after another
+		remoteAddresses = DnsResolver.getDefault().resolveAll(unresolved);
 		localAddress = new InetSocketAddress("127.0.0.1", localPort);
+		balancing = System.getProperty("balancing." + localPort,
+				System.getProperty("balancing", BalancingStrategies.FAILOVER));
 	}
 
 	public synchronized void start() throws IOException {
-		if (serverThread == null) {
-			serverChannel = ServerSocketChannel.open();
-			serverChannel.socket().bind(localAddress);
-			serverChannel.configureBlocking(false);
-			selector = Selector.open();
-			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-			ServerWorker serverWorker = new ServerWorker(selector,
-					remoteAddresses);
-			try {
-				objectInstance = ManagementFactory.getPlatformMBeanServer()
-						.registerMBean(
-								serverWorker,
-								ObjectName.getInstance(getClass().getPackage()
-										.getName()
-										+ ":type=ServerWorker,name="
-										+ localAddress.getPort()));
-			} catch (Exception e) {
-				e.printStackTrace();
+		if (serverChannels == null) {
+			serverChannels = EventLoopGroup.openServerChannels(localAddress,
+					options);
+			serverWorker = new ServerWorker(remoteAddresses,
+					options, BalancingStrategies.create(balancing));
+			String domain = getClass().getPackage().getName();
+			registerMBean(serverWorker, domain + ":type=ServerWorker,name="
+					+ localAddress.getPort());
+			for (int i = 0; i < remoteAddresses.length; i++) {
+				registerMBean(serverWorker.getBackendMetrics(i), domain
+						+ ":type=Backend,listener=" + localAddress.getPort()
+						+ ",name="
+						+ ObjectName.quote(remoteAddresses[i].toString()));
+			}
+			if (ENGINE_VIRTUAL.equals(engine)) {
+				virtualThreadEngine = new VirtualThreadEngine("portforward-"
+						+ localAddress.getPort());
+				for (ServerSocketChannel serverChannel : serverChannels) {
+					virtualThreadEngine.bind(serverChannel, serverWorker);
+				}
+			} else {
+				if (sharedEventLoopGroup != null) {
+					eventLoopGroup = sharedEventLoopGroup;
+				} else {
+					eventLoopGroup = new EventLoopGroup("portforward-"
+							+ localAddress.getPort());
+				}
+				// the accept key carries the worker, many ports share loops
+				if (serverChannels.length == 1) {
+					eventLoopGroup.bind(serverChannels[0], serverWorker, null,
+							serverWorker.getAcceptStats());
+				} else {
+					// kernel spreads connections, each loop keeps its own
+					for (ServerSocketChannel serverChannel : serverChannels) {
+						eventLoopGroup.bind(serverChannel, serverWorker,
+								eventLoopGroup.next(),
+								serverWorker.getAcceptStats());
+					}
+				}
+				serverWorker.startPools(eventLoopGroup);
+				eventLoopGroup.start();
 			}
-			serverThread = new Thread(serverWorker);
-			serverThread.start();
 		} else {
 			throw new IllegalStateException("Server was starting");
 		}
 	}
 
+	/**
+	 * @return loops of the selector engine, <code>null</code> if not started
+	 *         or running on another engine
+	 */
+	public EventLoopGroup getEventLoopGroup() {
+		return eventLoopGroup;
+	}
+
+	/**
+	 * @param group
+	 *            loops shared with other servers instead of a group of this
+	 *            server's own, closed by the caller
+	 */
+	public void setEventLoopGroup(EventLoopGroup group) {
+		this.sharedEventLoopGroup = group;
+	}
+
+	public String getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @param engine
+	 *            {@link #ENGINE_NIO} or {@link #ENGINE_VIRTUAL}, taken from
+	 *            system property "engine" by default
+	 */
+	public void setEngine(String engine) {
+		if (!ENGINE_NIO.equals(engine) && !ENGINE_VIRTUAL.equals(engine))
+			throw new IllegalArgumentException("Unknown engine: " + engine);
+		this.engine = engine;
+	}
+
+	public InetSocketAddress getLocalAddress() {
+		return localAddress;
+	}
+
+	/**
+	 * @return strategy name, the one in use by the worker once started
+	 */
+	public synchronized String getBalancing() {
+		return serverWorker != null ? serverWorker.getBalancing() : balancing;
+	}
+
+	/**
+	 * @param balancing
+	 *            strategy name, see {@link BalancingStrategies}. Taken from
+	 *            system property "balancing.&lt;local port&gt;" or
+	 *            "balancing" by default, can be changed at runtime over JMX.
+	 */
+	public synchronized void setBalancing(String balancing) {
+		// fail early on unknown names
+		BalancingStrategies.create(balancing);
+		this.balancing = balancing;
+		if (serverWorker != null) {
+			serverWorker.setBalancing(balancing);
+		}
+	}
+
+	public ChannelOptions getOptions() {
+		return options;
+	}
+
+	public void setOptions(ChannelOptions options) {
+		this.options = options;
+	}
+
 	private void stopping() {
-		close(selector);
-		selector = null;
-		close(serverChannel);
-		serverChannel = null;
-		if (objectInstance != null) {
+		if (serverWorker != null) {
+			serverWorker.closePools();
+			// keep a strategy changed over JMX for the next start
+			balancing = serverWorker.getBalancing();
+			serverWorker = null;
+		}
+		if (eventLoopGroup != sharedEventLoopGroup) {
+			close(eventLoopGroup);
+		}
+		eventLoopGroup = null;
+		close(virtualThreadEngine);
+		virtualThreadEngine = null;
+		for (ServerSocketChannel serverChannel : serverChannels) {
+			close(serverChannel);
+		}
+		serverChannels = null;
+		for (ObjectInstance objectInstance : objectInstances) {
 			try {
 				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
 						objectInstance.getObjectName());
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
-			objectInstance = null;
 		}
+		objectInstances.clear();
 	}
 
-	private void close(Closeable closeHandler) {
+	private void registerMBean(Object mbean, String name) {
 		try {
-			if (closeHandler != null) {
-				closeHandler.close();
-			}
-		} catch (IOException e) {
+			objectInstances.add(ManagementFactory.getPlatformMBeanServer()
+					.registerMBean(mbean, ObjectName.getInstance(name)));
+		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
-	private void close(Selector closeHandler) {
+	private void close(Closeable closeHandler) {
 		try {
 			if (closeHandler != null) {
 				closeHandler.close();
@@ -98,9 +220,7 @@ public class PortForwardServer implements Closeable {
 	}
 
 	public synchronized void close() throws IOException {
-		if (serverThread != null) {
-			serverThread.interrupt();
-			serverThread = null;
+		if (serverChannels != null) {
 			stopping();
 		}
 	}
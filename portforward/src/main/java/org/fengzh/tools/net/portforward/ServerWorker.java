@@ -1,162 +1,222 @@
 package org.fengzh.tools.net.portforward;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.BitSet;
 
+import org.fengzh.tools.net.core.AcceptStats;
+import org.fengzh.tools.net.core.BlockingForward;
 import org.fengzh.tools.net.core.ChannelForward;
+import org.fengzh.tools.net.core.ChannelForward.ConnectRace;
 import org.fengzh.tools.net.core.ChannelForward.ConnectStatusHandler;
-import org.fengzh.tools.net.core.ChannelHandler;
+import org.fengzh.tools.net.core.ChannelOptions;
+import org.fengzh.tools.net.core.ConnectionPool;
+import org.fengzh.tools.net.core.EventLoop;
+import org.fengzh.tools.net.core.EventLoopGroup;
+import org.fengzh.tools.net.core.EventLoopGroup.AcceptHandler;
+import org.fengzh.tools.net.core.TrafficMetrics;
+import org.fengzh.tools.net.core.VirtualThreadEngine;
+import org.fengzh.tools.net.core.VirtualThreadEngine.ConnectionHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-class ServerWorker implements Runnable, ServerWorkerMBean {
+class ServerWorker implements AcceptHandler, ConnectionHandler, ServerWorkerMBean {
 
 	private static final Logger logger = LoggerFactory
 			.getLogger(ServerWorker.class.getName());
 
-	private Selector selector;
-	private InetSocketAddress[] remoteAddresses;
-	private boolean[] badAddresses;
-	private int currentAddressPos;
-	private Set<ChannelForward> connectingPool = new HashSet<ChannelForward>();
+	private Backend[] backends;
+	private volatile int currentAddressPos;
+	private volatile BalancingStrategy balancing;
+	private ChannelOptions options;
+	private TrafficMetrics metrics = new TrafficMetrics();
+	private AcceptStats acceptStats = new AcceptStats();
+	// stagger of racing connects in milliseconds, 0 connects serially
+	private int connectRaceDelay = Integer.getInteger("connectRaceDelay", 0);
 
-	public ServerWorker(Selector selector, InetSocketAddress[] remoteAddresses) {
-		this.selector = selector;
-		this.remoteAddresses = remoteAddresses;
-		this.badAddresses = new boolean[remoteAddresses.length];
+	public ServerWorker(InetSocketAddress[] remoteAddresses, ChannelOptions options) {
+		this(remoteAddresses, options, BalancingStrategies
+				.create(BalancingStrategies.FAILOVER));
+	}
+
+	public ServerWorker(InetSocketAddress[] remoteAddresses,
+			ChannelOptions options, BalancingStrategy balancing) {
+		this.options = options;
+		this.balancing = balancing;
 		this.currentAddressPos = 0;
+		this.backends = new Backend[remoteAddresses.length];
+		for (int i = 0; i < remoteAddresses.length; i++) {
+			backends[i] = new Backend(remoteAddresses[i], new TrafficMetrics(
+					metrics));
+		}
+	}
+
+	AcceptStats getAcceptStats() {
+		return acceptStats;
+	}
+
+	TrafficMetrics getBackendMetrics(int index) {
+		return backends[index].getMetrics();
+	}
+
+	/**
+	 * Starts warm connection pools if system property warmPoolMin is set,
+	 * each pool is maintained by one loop of the group.
+	 */
+	void startPools(EventLoopGroup group) {
+		if (Integer.getInteger("warmPoolMin", 0) <= 0) {
+			return;
+		}
+		for (Backend backend : backends) {
+			ConnectionPool pool = new ConnectionPool(backend.getAddress());
+			pool.setCircuitBreaker(backend.getCircuitBreaker());
+			pool.start(group.next());
+			backend.setPool(pool);
+		}
 	}
 
-	public void run() {
-		while (selector.isOpen()) {
-			int count;
+	void closePools() {
+		for (Backend backend : backends) {
+			ConnectionPool pool = backend.getPool();
+			if (pool != null) {
+				backend.setPool(null);
+				pool.close();
+			}
+		}
+	}
+
+	public void accepted(SocketChannel local, EventLoop loop) {
+		metrics.connectionAccepted();
+		logger.info("New local incoming connection: {}", local.socket()
+				.getRemoteSocketAddress());
+		if (connectRaceDelay > 0) {
+			raceToRemote(local, loop);
+			return;
+		}
+		Backend backend = selectBackend();
+		if (backend == null) {
+			noBackend(local);
+			return;
+		}
+		linkToRemote(local, loop, backend);
+	}
+
+	/**
+	 * Accepted by the virtual thread engine, tries the backends in turn on
+	 * the calling thread until one is connected.
+	 */
+	public void accepted(SocketChannel local, VirtualThreadEngine engine) {
+		metrics.connectionAccepted();
+		logger.info("New local incoming connection: {}", local.socket()
+				.getRemoteSocketAddress());
+		Backend backend = selectBackend();
+		if (backend == null) {
+			noBackend(local);
+			return;
+		}
+		BlockingForward forward = new BlockingForward(local);
+		forward.setOptions(options);
+		while (true) {
+			forward.setAddress(backend.getAddress());
+			forward.setMetrics(backend.getMetrics());
+			backend.connectStarted();
+			long start = System.nanoTime();
 			try {
-				logger.trace("Selecting events.....");
-				// if new connecting in progress, check them
-				count = selector.select(connectingPool.isEmpty() ? 0 : 1000);
+				forward.startForward(engine);
+				backend.connectSucceeded(System.nanoTime() - start);
+				return;
 			} catch (IOException e) {
-				logger.error("Cannot select new events", e);
-				logger.info("Stopping server due to select error.");
-				break;
-			}
-			if (Thread.interrupted()) {
-				logger.info("Normally stop servers...");
-				for (Iterator<SelectionKey> keys = selector.keys().iterator(); keys
-						.hasNext();) {
-					close(keys.next().channel());
+				backend.connectFailed(System.nanoTime() - start);
+				backend = selectBackend();
+				if (backend == null) {
+					noBackend(local);
+					return;
 				}
-				logger.info("All channels are closed.");
-				break;
+				logger.info("Change address to next address: "
+						+ backend.getAddress().getHostString() + ":"
+						+ backend.getAddress().getPort());
 			}
-			if (count != 0) {
-				for (Iterator<SelectionKey> keys = selector.selectedKeys()
-						.iterator(); keys.hasNext();) {
-					SelectionKey key = keys.next();
-					keys.remove();
-					if (!key.isValid())
-						continue;
-					if (key.isAcceptable()) {
-						// accept new local connections
-						handleAccept(key);
-					} else if (key.attachment() instanceof ChannelHandler) {
-						try {
-							((ChannelHandler) key.attachment())
-									.onProcessing(key);
-						} catch (IOException e) {
-							logger.warn("processing got error", e);
-						}
-					} else {
-						logger.error(
-								"unknown key processing with attachement: {}",
-								key.attachment());
-					}
-				}
+		}
+	}
+
+	/**
+	 * @return backend picked by the balancing strategy, <code>null</code> if
+	 *         the circuits of all backends are open
+	 */
+	private Backend selectBackend() {
+		int index = selectBackend(null);
+		return index < 0 ? null : backends[index];
+	}
+
+	/**
+	 * @param excluded
+	 *            indices of backends not to pick, may be <code>null</code>
+	 * @return index of the backend picked, -1 if none is available
+	 */
+	private int selectBackend(BitSet excluded) {
+		int current = currentAddressPos % backends.length;
+		// retry if a half-open probe is taken by another thread meanwhile
+		for (int i = 0; i <= backends.length; i++) {
+			int index = balancing.select(backends, current, excluded);
+			if (index < 0) {
+				return -1;
 			}
-			// check connection timeout
-			if (!connectingPool.isEmpty()) {
-				for (ChannelForward forward : new HashSet<ChannelForward>(
-						connectingPool)) {
-					if (!forward.checkValidConnecting()) {
-						connectingPool.remove(forward);
-					}
-				}
+			if (backends[index].tryAcquire()) {
+				currentAddressPos = index;
+				return index;
 			}
 		}
+		return -1;
 	}
 
-	private void handleAccept(SelectionKey key) {
-		ServerSocketChannel server = (ServerSocketChannel) key.channel();
-		SocketChannel local;
+	/**
+	 * Fails fast instead of waiting for connect timeouts of dead backends.
+	 */
+	private void noBackend(SocketChannel local) {
+		logger.error("No suitable connections, closing local connection {}",
+				local.socket().getInetAddress());
+		metrics.connectionFailed();
 		try {
-			local = server.accept();
-			logger.info("New local incoming connection: {}", local.socket()
-					.getRemoteSocketAddress());
+			local.close();
 		} catch (IOException e) {
-			logger.error("Cannot accept new connection", e);
-			return;
-		}
-		linkToRemote(local);
-	}
-	
-	private InetSocketAddress getCurrentRemoteAddress() {
-		int check = remoteAddresses.length;
-		while (badAddresses[currentAddressPos] && check > 0) {
-			currentAddressPos = (currentAddressPos + 1) % remoteAddresses.length;
-			check--;
-		}
-		if (check == 0) {
-			return null;
-		} else {
-			return remoteAddresses[currentAddressPos];
+			logger.debug("close error", e);
 		}
 	}
 
-	private void linkToRemote(final SocketChannel local) {
+	private void linkToRemote(final SocketChannel local, final EventLoop loop,
+			final Backend backend) {
 		final ChannelForward forward = new ChannelForward(local);
+		final long start = System.nanoTime();
 		try {
-			InetSocketAddress current = getCurrentRemoteAddress();
-			if (current == null) {
-				restBadAddress();
-				current = getCurrentRemoteAddress();
-			}
-			forward.setAddress(current);
+			forward.setAddress(backend.getAddress());
+			forward.setOptions(options);
+			forward.setMetrics(backend.getMetrics());
+			forward.setPool(backend.getPool());
 			forward.setConnectStatusHandler(new ConnectStatusHandler() {
 
 				public void connected(SelectionKey key) {
+					backend.connectSucceeded(System.nanoTime() - start);
 				}
 
 				public void connectError(SelectionKey key) {
-					badAddresses[currentAddressPos] = true;
-					InetSocketAddress available = getCurrentRemoteAddress();
-					if (available!=null) {
+					backend.connectFailed(System.nanoTime() - start);
+					Backend available = selectBackend();
+					if (available != null) {
 						logger.info("Change address to next address: "
-								+ available.getHostName() + ":"
-								+ available.getPort());
-						linkToRemote(local);
+								+ available.getAddress().getHostString() + ":"
+								+ available.getAddress().getPort());
+						linkToRemote(local, loop, available);
 					} else {
-						logger.error(
-								"No suitable connections, closing local connection {}",
-								local.socket().getInetAddress());
-						try {
-							forward.close();
-						} catch (IOException e) {
-							logger.debug("close error", e);
-						}
+						noBackend(local);
 					}
 				}
 			});
-			forward.startForward(selector);
-			connectingPool.add(forward);
+			backend.connectStarted();
+			forward.startForward(loop);
 		} catch (IOException e) {
+			backend.connectFailed(System.nanoTime() - start);
 			logger.info("Cannot forward connection", e);
 			try {
 				forward.close();
@@ -166,23 +226,54 @@ class ServerWorker implements Runnable, ServerWorkerMBean {
 		}
 	}
 
-	private void restBadAddress() {
-		Arrays.fill(badAddresses, false);
-		logger.warn("reset bad address to inital values");
-	}
+	/**
+	 * Connects to several backends with staggered starts and keeps the
+	 * first one connected.
+	 */
+	private void raceToRemote(final SocketChannel local, EventLoop loop) {
+		final ChannelForward forward = new ChannelForward(local);
+		forward.setOptions(options);
+		forward.startRace(loop, new ConnectRace() {
 
-	private static void close(Closeable closeHandler) {
-		try {
-			if (closeHandler != null) {
-				closeHandler.close();
+			private final BitSet tried = new BitSet(backends.length);
+
+			public int nextCandidate() {
+				int index = selectBackend(tried);
+				if (index >= 0) {
+					tried.set(index);
+					backends[index].connectStarted();
+				}
+				return index;
 			}
-		} catch (IOException e) {
-			logger.debug("close error", e);
-		}
+
+			public InetSocketAddress getAddress(int candidate) {
+				return backends[candidate].getAddress();
+			}
+
+			public TrafficMetrics getMetrics(int candidate) {
+				return backends[candidate].getMetrics();
+			}
+
+			public void connected(int candidate, long nanos) {
+				backends[candidate].connectSucceeded(nanos);
+			}
+
+			public void connectFailed(int candidate, long nanos) {
+				backends[candidate].connectFailed(nanos);
+			}
+
+			public void connectCancelled(int candidate, long nanos) {
+				backends[candidate].connectCancelled(nanos);
+			}
+
+			public void allFailed() {
+				noBackend(local);
+			}
+		}, connectRaceDelay);
 	}
 
 	public void setCurrentRemoteAddressPos(int currentAddrPos) {
-		currentAddressPos = currentAddrPos % remoteAddresses.length;
+		currentAddressPos = currentAddrPos % backends.length;
 	}
 
 	public int getCurrentRemoteAddressPos() {
@@ -190,7 +281,169 @@ class ServerWorker implements Runnable, ServerWorkerMBean {
 	}
 
 	public String getRemoteAddress() {
-		return remoteAddresses[currentAddressPos % remoteAddresses.length]
+		return backends[currentAddressPos % backends.length].getAddress()
 				.toString();
 	}
+
+	public String getBalancing() {
+		return balancing.getName();
+	}
+
+	public void setBalancing(String name) {
+		this.balancing = BalancingStrategies.create(name);
+	}
+
+	public long getAcceptBatches() {
+		return acceptStats.getBatches();
+	}
+
+	public double getAverageAcceptBatch() {
+		return acceptStats.getAverageBatch();
+	}
+
+	public int getMaxAcceptBatch() {
+		return acceptStats.getMaxBatch();
+	}
+
+	public long getAcceptBudgetExhausted() {
+		return acceptStats.getBudgetExhausted();
+	}
+
+	public String getAcceptBatchSizes() {
+		return acceptStats.getBatchSizes();
+	}
+
+	public String[] getBackendStates() {
+		String[] states = new String[backends.length];
+		for (int i = 0; i < backends.length; i++) {
+			ConnectionPool pool = backends[i].getPool();
+			states[i] = backends[i] + " " + backends[i].getCircuitBreaker()
+					+ (pool == null ? "" : " " + pool);
+		}
+		return states;
+	}
+
+	public long getAcceptedConnections() {
+		return metrics.getAcceptedConnections();
+	}
+
+	public long getActiveConnections() {
+		return metrics.getActiveConnections();
+	}
+
+	public long getFailedConnections() {
+		return metrics.getFailedConnections();
+	}
+
+	public long getRaceAttempts() {
+		return metrics.getRaceAttempts();
+	}
+
+	public long getRaceAttemptsCancelled() {
+		return metrics.getRaceAttemptsCancelled();
+	}
+
+	public long getBytesSent() {
+		return metrics.getBytesSent();
+	}
+
+	public long getBytesReceived() {
+		return metrics.getBytesReceived();
+	}
+
+	public double getConnectionRate1m() {
+		return metrics.getConnectionRate1m();
+	}
+
+	public double getConnectionRate5m() {
+		return metrics.getConnectionRate5m();
+	}
+
+	public double getConnectionRate15m() {
+		return metrics.getConnectionRate15m();
+	}
+
+	public double getBytesSentRate1m() {
+		return metrics.getBytesSentRate1m();
+	}
+
+	public double getBytesSentRate5m() {
+		return metrics.getBytesSentRate5m();
+	}
+
+	public double getBytesSentRate15m() {
+		return metrics.getBytesSentRate15m();
+	}
+
+	public double getBytesReceivedRate1m() {
+		return metrics.getBytesReceivedRate1m();
+	}
+
+	public double getBytesReceivedRate5m() {
+		return metrics.getBytesReceivedRate5m();
+	}
+
+	public double getBytesReceivedRate15m() {
+		return metrics.getBytesReceivedRate15m();
+	}
+
+	public double getConnectTimeP50() {
+		return metrics.getConnectTimeP50();
+	}
+
+	public double getConnectTimeP90() {
+		return metrics.getConnectTimeP90();
+	}
+
+	public double getConnectTimeP99() {
+		return metrics.getConnectTimeP99();
+	}
+
+	public double getConnectTimeP999() {
+		return metrics.getConnectTimeP999();
+	}
+
+	public double getConnectTimeMax() {
+		return metrics.getConnectTimeMax();
+	}
+
+	public double getFirstByteTimeP50() {
+		return metrics.getFirstByteTimeP50();
+	}
+
+	public double getFirstByteTimeP90() {
+		return metrics.getFirstByteTimeP90();
+	}
+
+	public double getFirstByteTimeP99() {
+		return metrics.getFirstByteTimeP99();
+	}
+
+	public double getFirstByteTimeP999() {
+		return metrics.getFirstByteTimeP999();
+	}
+
+	public double getFirstByteTimeMax() {
+		return metrics.getFirstByteTimeMax();
+	}
+
+	public double getSessionDurationP50() {
+		return metrics.getSessionDurationP50();
+	}
+
+	public double getSessionDurationP90() {
+		return metrics.getSessionDurationP90();
+	}
+
+	public double getSessionDurationP99() {
+		return metrics.getSessionDurationP99();
+	}
+
+	public double getSessionDurationP999() {
+		return metrics.getSessionDurationP999();
+	}
+
+	public double getSessionDurationMax() {
+		return metrics.getSessionDurationMax();
+	}
 }
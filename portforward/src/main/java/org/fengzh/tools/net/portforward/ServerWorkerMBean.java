@@ -1,10 +1,49 @@
 package org.fengzh.tools.net.portforward;
 
-public interface ServerWorkerMBean {
+import org.fengzh.tools.net.core.AcceptStats;
+import org.fengzh.tools.net.core.TrafficMetricsMBean;
+
+/**
+ * Listener state and the traffic summed over all backends, metrics of each
+ * backend are registered as separate {@link TrafficMetricsMBean}.
+ */
+public interface ServerWorkerMBean extends TrafficMetricsMBean {
 	public void setCurrentRemoteAddressPos(int currentAddrPos);
 
 	public int getCurrentRemoteAddressPos();
 
 	
 	public String getRemoteAddress();
+
+	/**
+	 * @return name of the balancing strategy, see {@link BalancingStrategies}
+	 */
+	public String getBalancing();
+
+	public void setBalancing(String name);
+
+	/**
+	 * @return selector wakeups with accepting, see {@link AcceptStats}
+	 */
+	public long getAcceptBatches();
+
+	public double getAverageAcceptBatch();
+
+	public int getMaxAcceptBatch();
+
+	/**
+	 * @return wakeups which stopped accepting at the budget
+	 */
+	public long getAcceptBudgetExhausted();
+
+	/**
+	 * @return accept batch count per size bucket
+	 */
+	public String getAcceptBatchSizes();
+
+	/**
+	 * @return address, circuit breaker state and warm pool usage of each
+	 *         backend
+	 */
+	public String[] getBackendStates();
 }
@@ -2,44 +2,199 @@ package org.fengzh.tools.net.revsever;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.fengzh.tools.net.core.AcceptStats;
 import org.fengzh.tools.net.core.ChannelHandler;
+import org.fengzh.tools.net.core.ChannelOptions;
+import org.fengzh.tools.net.core.EventLoop;
+import org.fengzh.tools.net.core.EventLoopGroup;
+import org.fengzh.tools.net.revsever.mux.MuxSession;
+import org.fengzh.tools.net.revsever.mux.MuxStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import jdk.net.ExtendedSocketOptions;
+
 public class ControlServer implements ChannelHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(ControlServer.class);
 
+    /**
+     * One agent connection per virtual connection, the default.
+     */
+    public static final String TUNNEL_SINGLE = "single";
+
+    /**
+     * Virtual connections are streams of a few multiplexed agent connections,
+     * see {@link MuxSession}.
+     */
+    public static final String TUNNEL_MUX = "mux";
+
     private InetSocketAddress controlAddress;
-    private ServerSocketChannel serverChannel;
+    private ServerSocketChannel[] serverChannels;
     private VirtualServer virtualServer;
-    private Queue<SocketChannel> remoteChannels = new LinkedBlockingQueue<SocketChannel>(16);
+    // idle tunnels, newest last and taken from the tail
+    private ConcurrentLinkedDeque<Tunnel> tunnels = new ConcurrentLinkedDeque<Tunnel>();
+    private AtomicInteger tunnelCount = new AtomicInteger();
+    private int tunnelInventory = Integer.getInteger("tunnelInventory", 16);
+    private int tunnelKeepIdle = Integer.getInteger("tunnelKeepIdle", 30);
+    private ChannelOptions options = new ChannelOptions();
+    private EventLoopGroup eventLoopGroup;
+    private AcceptStats acceptStats = new AcceptStats();
+    private boolean multiplexed = TUNNEL_MUX.equals(System.getProperty("tunnelMode", TUNNEL_SINGLE));
+    // ready sessions, read by virtual server loops
+    private List<MuxSession> sessions = new CopyOnWriteArrayList<MuxSession>();
+    private AtomicInteger sessionIndex = new AtomicInteger();
+    private MuxSession.Listener sessionListener = new MuxSession.Listener() {
+
+        public void ready(MuxSession session) {
+            sessions.add(session);
+            virtualServer.openPendingStreams();
+        }
+
+        public void opened(MuxStream stream, int id) {
+            logger.warn("Agent cannot open stream, reset stream {}", stream.getId());
+            stream.reset();
+        }
+
+        public void closed(MuxSession session) {
+            sessions.remove(session);
+        }
+    };
+
+    /**
+     * Idle tunnel watched for liveness in the loop which accepted it. The agent
+     * sends nothing before a tunnel is linked, so readiness to read means end
+     * of stream or a connection reset, and the tunnel is dropped.
+     * <p>
+     * The key is not cancelled when the tunnel is taken: a new owner in the
+     * same loop takes the key over by registering again, otherwise the key
+     * stops watching at its next wakeup.
+     */
+    private class Tunnel implements ChannelHandler {
+
+        private final SocketChannel channel;
+        private volatile boolean taken = false;
+
+        Tunnel(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public void onProcessing(SelectionKey key) throws IOException {
+            if (!key.isReadable())
+                return;
+            if (!taken && tunnels.remove(this)) {
+                tunnelCount.decrementAndGet();
+                logger.debug("Idle tunnel is closed by agent {}", channel.socket());
+                close(channel);
+                return;
+            }
+            // taken, the new owner reads it
+            key.interestOps(0);
+        }
+    }
 
     public void setBindAddress(String localHost, int port) {
         this.controlAddress = new InetSocketAddress(localHost, port);
         this.virtualServer = new VirtualServer(this);
     }
 
+    public ChannelOptions getOptions() {
+        return options;
+    }
+
+    public void setOptions(ChannelOptions options) {
+        this.options = options;
+    }
+
     public void addVirtualBindAddress(String localHost, int port) {
         this.virtualServer.addLocalAddress(localHost, port);
     }
 
-    public void start(Selector selector) throws IOException {
-        if (serverChannel != null && virtualServer != null)
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    /**
+     * @param multiplexed
+     *            agents open multiplexed sessions, system property
+     *            "tunnelMode" ({@link #TUNNEL_SINGLE} or {@link #TUNNEL_MUX}) by
+     *            default. Agents must run in the same mode.
+     */
+    public void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+    }
+
+    public int getTunnelInventory() {
+        return tunnelInventory;
+    }
+
+    /**
+     * @param tunnelInventory
+     *            idle tunnels kept for new virtual connections, extra ones are
+     *            closed, system property "tunnelInventory" (16) by default
+     */
+    public void setTunnelInventory(int tunnelInventory) {
+        if (tunnelInventory <= 0)
+            throw new IllegalArgumentException("Tunnel inventory should be positive.");
+        this.tunnelInventory = tunnelInventory;
+    }
+
+    public int getTunnelKeepIdle() {
+        return tunnelKeepIdle;
+    }
+
+    /**
+     * @param tunnelKeepIdle
+     *            seconds before TCP keepalive probes an idle tunnel, where the
+     *            platform supports it, system property "tunnelKeepIdle" (30) by
+     *            default
+     */
+    public void setTunnelKeepIdle(int tunnelKeepIdle) {
+        if (tunnelKeepIdle <= 0)
+            throw new IllegalArgumentException("Tunnel keep idle should be positive.");
+        this.tunnelKeepIdle = tunnelKeepIdle;
+    }
+
+    /**
+     * @return idle tunnels
+     */
+    public int getTunnelCount() {
+        return tunnelCount.get();
+    }
+
+    public EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     * Binds control server to one loop of the group, virtual server listeners
+     * and linked connections are spread over the group. With more than one
+     * acceptor in the options, further SO_REUSEPORT listeners of the control
+     * and virtual ports accept on other loops of the group.
+     */
+    public void start(EventLoopGroup group) throws IOException {
+        if (serverChannels != null && virtualServer != null)
             return;
         try {
-            serverChannel = ServerSocketChannel.open();
-            serverChannel.socket().bind(controlAddress);
-            logger.info("Control server binds to {} successful", controlAddress);
-            serverChannel.configureBlocking(false);
-            serverChannel.register(selector, SelectionKey.OP_ACCEPT, this);
+            eventLoopGroup = group;
+            serverChannels = EventLoopGroup.openServerChannels(controlAddress, options);
+            logger.info("Control server binds to {} successful with {} acceptors", controlAddress,
+                    serverChannels.length);
+            for (ServerSocketChannel serverChannel : serverChannels) {
+                serverChannel.configureBlocking(false);
+                group.next().register(serverChannel, SelectionKey.OP_ACCEPT, this);
+            }
         } catch (IOException e) {
             stop();
             throw e;
@@ -52,54 +207,201 @@ public class ControlServer implements ChannelHandler {
             return;
         }
         ServerSocketChannel channel = (ServerSocketChannel) key.channel();
-        SocketChannel remote = channel.accept();
+        // drain the backlog up to the budget, agents reconnect in bursts
+        int budget = eventLoopGroup.getAcceptBudget();
+        int count = 0;
+        try {
+            while (count < budget) {
+                SocketChannel remote = channel.accept();
+                if (remote == null)
+                    break;
+                count++;
+                // a failed tunnel does not stop the rest of the burst
+                try {
+                    receive(remote, key);
+                } catch (IOException e) {
+                    logger.warn("Cannot receive remote connection " + remote.socket(), e);
+                    close(remote);
+                } catch (RuntimeException e) {
+                    logger.error("Cannot receive remote connection " + remote.socket(), e);
+                    close(remote);
+                }
+            }
+        } finally {
+            acceptStats.record(count, count == budget);
+        }
+    }
+
+    private void receive(SocketChannel remote, SelectionKey key) throws IOException {
         logger.info("Receive incoming remote connection {}", remote.socket());
-        if (!remoteChannels.offer(remote)) {
-            validRemoteConnections();
-            if (!remoteChannels.offer(remote)) {
-                remote.close();
+        if (multiplexed) {
+            startSession(remote);
+            if (!virtualServer.isRunning()) {
+                logger.info("Starting virtal server");
+                virtualServer.start();
             }
+            return;
         }
-        logger.trace("==> (Ready) Offer remote channel: {}", remote.socket());
         if (!virtualServer.isRunning()) {
             logger.info("Starting virtal server");
-            virtualServer.start(key.selector());
-        } else {
-            remote = remoteChannels.poll();
-            logger.trace("==> (Link) Poll remote channel: {}", remote.socket());
-            if (!virtualServer.link(remote, key)) {
-                logger.trace("==> (Link) Offer remote channel: {}", channel.socket());
-                remoteChannels.offer(remote);
+            virtualServer.start();
+        }
+        if (virtualServer.link(remote)) {
+            logger.trace("==> (Link) remote channel: {}", remote.socket());
+            return;
+        }
+        if (!offerTunnel(remote, key.selector())) {
+            logger.debug("Tunnel inventory is full, close {}", remote.socket());
+            remote.close();
+            return;
+        }
+        logger.trace("==> (Ready) Offer remote channel: {}", remote.socket());
+        // a client may have been queued after the link above
+        virtualServer.linkPending();
+    }
+
+    /**
+     * Keeps the tunnel in the inventory and watches it in the accepting loop.
+     * The tunnel is closed if it cannot be watched.
+     *
+     * @return <code>false</code> if the inventory is full
+     */
+    private boolean offerTunnel(SocketChannel remote, Selector selector) throws IOException {
+        if (tunnelCount.incrementAndGet() > tunnelInventory) {
+            tunnelCount.decrementAndGet();
+            return false;
+        }
+        boolean offered = false;
+        try {
+            remote.configureBlocking(false);
+            keepAlive(remote);
+            Tunnel tunnel = new Tunnel(remote);
+            remote.register(selector, SelectionKey.OP_READ, tunnel);
+            tunnels.offerLast(tunnel);
+            offered = true;
+            return true;
+        } finally {
+            if (!offered) {
+                tunnelCount.decrementAndGet();
+                close(remote);
             }
         }
     }
 
-    private void validRemoteConnections() {
-        for (int i = remoteChannels.size() - 1; i >= 0; i--) {
-            SocketChannel channel = remoteChannels.poll();
-            logger.trace("==> (Checking) Poll remote channel: {}", channel.socket());
-            if (channel.isOpen()) {
-                if (channel.isConnected()) {
-                    logger.trace("==> (Checking) Offer remote channel: {}", channel.socket());
-                    remoteChannels.offer(channel);
-                } else {
+    /**
+     * Probes idle tunnels with TCP keepalive, so the kernel resets tunnels
+     * whose agent disappeared silently and the read readiness drops them.
+     */
+    private void keepAlive(SocketChannel remote) throws IOException {
+        remote.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        if (remote.supportedOptions().contains(ExtendedSocketOptions.TCP_KEEPIDLE)) {
+            remote.setOption(ExtendedSocketOptions.TCP_KEEPIDLE, tunnelKeepIdle);
+            remote.setOption(ExtendedSocketOptions.TCP_KEEPINTERVAL, Math.max(1, tunnelKeepIdle / 3));
+            remote.setOption(ExtendedSocketOptions.TCP_KEEPCOUNT, 3);
+        }
+    }
+
+    private void startSession(final SocketChannel remote) {
+        final EventLoop loop = eventLoopGroup.next();
+        loop.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    new MuxSession(remote, loop, sessionListener, true).start();
+                } catch (IOException e) {
+                    logger.warn("Cannot start multiplexed session", e);
                     try {
-                        channel.close();
-                    } catch (IOException e) {
-                        logger.debug("Close closed connection");
+                        remote.close();
+                    } catch (IOException ioe) {
+                        logger.debug("Close failure", ioe);
                     }
                 }
             }
-        }
+        });
+    }
+
+    /**
+     * Opens a stream for the local connection on one of the ready sessions in
+     * turn, the stream is set up in the loop of the session.
+     *
+     * @return <code>false</code> if no session is ready
+     */
+    boolean openStream(final SocketChannel local, final int id) {
+        Object[] ready = sessions.toArray();
+        if (ready.length == 0)
+            return false;
+        final MuxSession session = (MuxSession) ready[(sessionIndex.getAndIncrement() & Integer.MAX_VALUE)
+                % ready.length];
+        session.getLoop().execute(new Runnable() {
+
+            public void run() {
+                try {
+                    session.openStream(local, id);
+                } catch (IOException e) {
+                    logger.warn("Cannot open stream for {}: {}", local.socket(), e.toString());
+                    try {
+                        local.close();
+                    } catch (IOException ioe) {
+                        logger.debug("Close failure", ioe);
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return sizes of accept batches of the control port
+     */
+    public AcceptStats getAcceptStats() {
+        return acceptStats;
     }
 
     public void stop() {
 
     }
 
-    public synchronized SocketChannel receiveRemoteChannel() {
-        logger.trace("==> remote channels: {}", remoteChannels.size());
-        logger.trace("==> (Using) Poll remote channel: {}", remoteChannels.peek());
-        return remoteChannels.poll();
+    /**
+     * Takes the newest live idle tunnel, may be called from any thread.
+     *
+     * @return <code>null</code> if no tunnel is left
+     */
+    SocketChannel receiveRemoteChannel() {
+        Tunnel tunnel;
+        while ((tunnel = tunnels.pollLast()) != null) {
+            tunnelCount.decrementAndGet();
+            tunnel.taken = true;
+            if (isAlive(tunnel.channel)) {
+                logger.trace("==> (Using) Poll remote channel: {}", tunnel.channel.socket());
+                return tunnel.channel;
+            }
+            logger.debug("Drop dead tunnel {}", tunnel.channel.socket());
+            close(tunnel.channel);
+        }
+        return null;
+    }
+
+    boolean hasRemoteChannel() {
+        return !tunnels.isEmpty();
+    }
+
+    private boolean isAlive(SocketChannel channel) {
+        if (!channel.isOpen() || !channel.isConnected()) {
+            return false;
+        }
+        try {
+            // nothing to read means the agent is still waiting
+            return channel.read(ByteBuffer.allocate(1)) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Close failure", e);
+        }
     }
 }
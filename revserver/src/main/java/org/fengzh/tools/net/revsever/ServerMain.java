@@ -1,11 +1,8 @@
 package org.fengzh.tools.net.revsever;
 
 import java.io.IOException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.util.Iterator;
 
-import org.fengzh.tools.net.core.ChannelHandler;
+import org.fengzh.tools.net.core.EventLoopGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,9 +17,9 @@ public class ServerMain {
     public static void main(String[] args) {
         int controlPort = Integer.parseInt(args[0]);
         ControlServer controlServer = new ControlServer();
-        Selector selector;
+        EventLoopGroup eventLoopGroup;
         try {
-            selector = Selector.open();
+            eventLoopGroup = new EventLoopGroup("revserver");
         } catch (IOException e) {
             logger.error("Cannot open selector");
             return;
@@ -35,39 +32,12 @@ public class ServerMain {
         }
         logger.info("Starting control server");
         try {
-            controlServer.start(selector);
+            controlServer.start(eventLoopGroup);
         } catch (IOException e) {
             logger.error("Start control server failure", e);
+            eventLoopGroup.close();
+            return;
         }
-        while (selector.isOpen()) {
-            logger.debug("Selecting events.....");
-            int count;
-            try {
-                count = selector.select();
-            } catch (IOException e) {
-                logger.warn("Selector processing get error", e);
-                continue;
-            }
-            logger.trace("Got selecting events count {}", count);
-            for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext();) {
-                SelectionKey key = keys.next();
-                keys.remove();
-                if (!key.isValid())
-                    continue;
-                Object attachement = key.attachment();
-                if (attachement instanceof ChannelHandler) {
-                    ChannelHandler handler = (ChannelHandler) attachement;
-                    logger.trace("Processing key interest ops '{}' with handler {}", key.interestOps(),
-                            handler);
-                    try {
-                        handler.onProcessing(key);
-                    } catch (IOException e) {
-                        logger.error("Onprocess falure", e);
-                    }
-                } else {
-                    logger.error("Cannot process key {} due to attachment is {}", key, attachement);
-                }
-            }
-        }
+        eventLoopGroup.start();
     }
 }
@@ -5,28 +5,98 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.fengzh.tools.net.core.ChannelExchange;
 import org.fengzh.tools.net.core.ChannelHandler;
+import org.fengzh.tools.net.core.EventLoop;
+import org.fengzh.tools.net.core.EventLoopGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-class VirtualServer implements ChannelHandler {
+/**
+ * Listens on the virtual ports and links local clients to tunnels of the
+ * agent. Clients arriving without a free tunnel wait in a bounded FIFO queue
+ * of their port, a full queue rejects them at once and a client still waiting
+ * at its deadline is closed by a timer of the loop which accepted it. Tunnels
+ * serve the oldest waiting client of all ports.
+ */
+class VirtualServer {
 
 	private static final Logger logger = LoggerFactory
 			.getLogger(VirtualServer.class);
 
 	private List<InetSocketAddress> localAddresses = new ArrayList<InetSocketAddress>();
 	private List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>();
+	private List<Port> ports = new ArrayList<Port>();
 	private ControlServer controlServer;
-	private Map<SocketChannel, Long> pendingSockets = new LinkedHashMap<SocketChannel, Long>();
+	private int pendingLimit = Integer.getInteger("pendingLimit", 64);
+	private long pendingTimeout = Integer.getInteger("pendingTimeout", 10) * 1000L;
+	// guards the pending queues of all ports
+	private final Object pendingLock = new Object();
+	// arrival order across ports
+	private long pendingSequence = 0;
+
+	/**
+	 * Virtual port with the clients waiting for a tunnel.
+	 */
+	private static class Port {
+
+		private final int id;
+		private final InetSocketAddress address;
+		private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+
+		Port(int id, InetSocketAddress address) {
+			this.id = id;
+			this.address = address;
+		}
+	}
+
+	private static class Pending {
+
+		private final SocketChannel channel;
+		private final Port port;
+		private final long sequence;
+		// deadline passed, guarded by the pending lock
+		private boolean expired = false;
+
+		Pending(SocketChannel channel, Port port, long sequence) {
+			this.channel = channel;
+			this.port = port;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Accepts the clients of one listener in the loop it is registered to.
+	 */
+	private class Acceptor implements ChannelHandler {
+
+		private final Port port;
+		private final EventLoop loop;
+
+		Acceptor(Port port, EventLoop loop) {
+			this.port = port;
+			this.loop = loop;
+		}
+
+		public void onProcessing(SelectionKey key) throws IOException {
+			if (!key.isAcceptable())
+				return;
+			ServerSocketChannel channel = (ServerSocketChannel) key.channel();
+			int budget = controlServer.getEventLoopGroup().getAcceptBudget();
+			for (int i = 0; i < budget; i++) {
+				SocketChannel localChannel = channel.accept();
+				if (localChannel == null)
+					return;
+				accepted(localChannel, port, loop);
+			}
+		}
+	}
 
 	public VirtualServer(ControlServer controlServer) {
 		if (controlServer == null) {
@@ -39,29 +109,85 @@ class VirtualServer implements ChannelHandler {
 		localAddresses.add(new InetSocketAddress(localHost, port));
 	}
 
-	public boolean isRunning() {
+	public int getPendingLimit() {
+		return pendingLimit;
+	}
+
+	/**
+	 * @param pendingLimit
+	 *            clients waiting for a tunnel per virtual port, system property
+	 *            pendingLimit (64) by default
+	 */
+	public void setPendingLimit(int pendingLimit) {
+		if (pendingLimit < 0)
+			throw new IllegalArgumentException("Pending limit should not be negative.");
+		this.pendingLimit = pendingLimit;
+	}
+
+	public long getPendingTimeout() {
+		return pendingTimeout;
+	}
+
+	/**
+	 * @param pendingTimeout
+	 *            milliseconds a client waits for a tunnel, system property
+	 *            pendingTimeout (10 seconds) by default
+	 */
+	public void setPendingTimeout(long pendingTimeout) {
+		if (pendingTimeout <= 0)
+			throw new IllegalArgumentException("Pending timeout should be positive.");
+		this.pendingTimeout = pendingTimeout;
+	}
+
+	/**
+	 * @return clients waiting for a tunnel on all ports
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		synchronized (pendingLock) {
+			for (Port port : ports) {
+				count += port.pending.size();
+			}
+		}
+		return count;
+	}
+
+	public synchronized boolean isRunning() {
 		return !serverChannels.isEmpty();
 	}
 
-	public synchronized void start(Selector selector) throws IOException {
+	/**
+	 * Binds the virtual ports, the listeners are spread over the loops of the
+	 * control server's group.
+	 */
+	public synchronized void start() throws IOException {
 		if (!serverChannels.isEmpty())
 			return;
-		for (InetSocketAddress localAddress : localAddresses) {
-			ServerSocketChannel channel = null;
+		EventLoopGroup group = controlServer.getEventLoopGroup();
+		for (int id = 0; id < localAddresses.size(); id++) {
+			InetSocketAddress localAddress = localAddresses.get(id);
+			ServerSocketChannel[] channels;
 			try {
-				channel = ServerSocketChannel.open();
-				channel.socket().bind(localAddress);
-				logger.info("Virtaul server binds to {} successful.",
-						localAddress);
-				channel.configureBlocking(false);
-				channel.register(selector, SelectionKey.OP_ACCEPT, this);
+				channels = EventLoopGroup.openServerChannels(localAddress,
+						controlServer.getOptions());
 			} catch (IOException e) {
 				logger.error("Start virtual server failure on " + localAddress,
 						e);
-				close(channel);
 				throw e;
 			}
-			serverChannels.add(channel);
+			logger.info("Virtaul server binds to {} successful.",
+					localAddress);
+			Port port = new Port(id, localAddress);
+			synchronized (pendingLock) {
+				ports.add(port);
+			}
+			for (ServerSocketChannel channel : channels) {
+				serverChannels.add(channel);
+				channel.configureBlocking(false);
+				EventLoop loop = group.next();
+				loop.register(channel, SelectionKey.OP_ACCEPT, new Acceptor(
+						port, loop));
+			}
 		}
 	}
 
@@ -77,53 +203,188 @@ class VirtualServer implements ChannelHandler {
 
 	public synchronized void stop() {
 		for (int i = serverChannels.size() - 1; i >= 0; i--) {
-			ServerSocketChannel channel = serverChannels.remove(i);
-			;
-			if (channel != null) {
-				close(channel);
-				logger.info("Virtual server stopped on {}",
-						localAddresses.get(i));
+			close(serverChannels.remove(i));
+		}
+		List<Pending> dropped = new ArrayList<Pending>();
+		synchronized (pendingLock) {
+			for (Port port : ports) {
+				dropped.addAll(port.pending);
+				port.pending.clear();
+				logger.info("Virtual server stopped on {}", port.address);
 			}
+			ports.clear();
+		}
+		for (Pending pending : dropped) {
+			close(pending.channel);
 		}
 	}
 
-	public void onProcessing(SelectionKey key) throws IOException {
-		if (!key.isAcceptable())
+	private void accepted(SocketChannel localChannel, Port port,
+			EventLoop loop) throws IOException {
+		if (controlServer.isMultiplexed()) {
+			if (!controlServer.openStream(localChannel, port.id)) {
+				// no session yet, wait for one
+				enqueue(localChannel, port, loop);
+				// a session may have become ready meanwhile
+				openPendingStreams();
+			}
 			return;
-		ServerSocketChannel channel = (ServerSocketChannel) key.channel();
-		int id = serverChannels.indexOf(channel);
-		SocketChannel localChannel = channel.accept();
+		}
 		SocketChannel remoteChannel = controlServer.receiveRemoteChannel();
 		logger.trace("==> Retrive remote channel: {}", remoteChannel);
 		if (remoteChannel == null) {
-			pendingSockets.put(localChannel,
-					new Long(10 * 1000L + System.currentTimeMillis()));
+			enqueue(localChannel, port, loop);
+			// a tunnel may have been offered meanwhile
+			linkPending();
 		} else {
-			linkChannels(localChannel, remoteChannel, key.selector(), id);
+			linkChannels(localChannel, remoteChannel, port.id);
+		}
+	}
+
+	/**
+	 * Queues the client until a tunnel is free, or rejects it if the queue of
+	 * the port is full. Called in the accepting loop which also expires it.
+	 */
+	private void enqueue(SocketChannel localChannel, Port port, EventLoop loop) {
+		final Pending pending;
+		synchronized (pendingLock) {
+			if (port.pending.size() >= pendingLimit) {
+				pending = null;
+			} else {
+				pending = new Pending(localChannel, port, pendingSequence++);
+				port.pending.addLast(pending);
+			}
+		}
+		if (pending == null) {
+			logger.warn("Too many clients waiting on {}, reject {}",
+					port.address, localChannel.socket());
+			close(localChannel);
+			return;
+		}
+		// not cancelled when linked, the client is just not found anymore
+		loop.schedule(new Runnable() {
+
+			public void run() {
+				boolean expired;
+				synchronized (pendingLock) {
+					pending.expired = true;
+					expired = pending.port.pending.remove(pending);
+				}
+				if (expired) {
+					logger.warn("No tunnel in time for {}, close it",
+							pending.channel.socket());
+					close(pending.channel);
+				}
+			}
+		}, pendingTimeout);
+	}
+
+	/**
+	 * @return the client waiting longest on any port
+	 */
+	private Pending poll() {
+		synchronized (pendingLock) {
+			Port oldest = null;
+			for (Port port : ports) {
+				Pending head = port.pending.peekFirst();
+				if (head != null
+						&& (oldest == null || head.sequence < oldest.pending
+								.peekFirst().sequence)) {
+					oldest = port;
+				}
+			}
+			return oldest == null ? null : oldest.pending.pollFirst();
 		}
 	}
 
-	private void linkChannels(SocketChannel local, SocketChannel remote,
-			Selector selector, int id) throws IOException {
-		new ChannelExchange(local, remote, selector);
-		// ping remote
-		logger.debug("Start ping remote {}", remote.socket());
-		ByteBuffer pingBuffer = ByteBuffer.allocate(1);
-		pingBuffer.put((byte) id);
-		pingBuffer.flip();
-		remote.write(pingBuffer);
-		logger.debug("End ping remote {}", remote.socket());
+	private void linkChannels(final SocketChannel local,
+			final SocketChannel remote, final int id) {
+		final EventLoop loop = controlServer.getEventLoopGroup().next();
+		loop.execute(new Runnable() {
+
+			public void run() {
+				try {
+					ChannelExchange exchange = new ChannelExchange(local,
+							remote, loop, controlServer.getOptions());
+					// routing id as an int in one write with the bytes the
+					// client has already sent
+					ByteBuffer routing = ByteBuffer.allocate(4);
+					routing.putInt(id).flip();
+					exchange.writeFirst(routing);
+					logger.debug("Linked {} to remote {}", local.socket(),
+							remote.socket());
+				} catch (IOException e) {
+					logger.warn("Cannot link local connection to remote", e);
+					close(local);
+					close(remote);
+				}
+			}
+		});
 	}
 
-	public boolean link(SocketChannel remote, SelectionKey key)
-			throws IOException {
-		if (pendingSockets.isEmpty())
+	/**
+	 * Links the tunnel to the client waiting longest, with the id of the port
+	 * the client connected to.
+	 *
+	 * @return <code>false</code> if no client is waiting
+	 */
+	public boolean link(SocketChannel remote) {
+		Pending local = poll();
+		if (local == null)
 			return false;
-		SocketChannel local = pendingSockets.keySet().iterator().next();
-		pendingSockets.remove(local);
-		int id = serverChannels.indexOf(key.channel());
-		linkChannels(local, remote, key.selector(), id);
+		linkChannels(local.channel, remote, local.port.id);
 		return true;
 	}
 
+	/**
+	 * Links the waiting clients to idle tunnels of the control server. Both
+	 * sides check the other after offering their own, so neither a client nor
+	 * a tunnel is left waiting while the other one is idle.
+	 */
+	public void linkPending() {
+		Pending local;
+		while ((local = poll()) != null) {
+			SocketChannel remote = controlServer.receiveRemoteChannel();
+			if (remote != null) {
+				linkChannels(local.channel, remote, local.port.id);
+			} else if (requeue(local) && !controlServer.hasRemoteChannel()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Opens streams for the waiting clients while a multiplexed session is
+	 * ready.
+	 */
+	public void openPendingStreams() {
+		Pending local;
+		while ((local = poll()) != null) {
+			if (!controlServer.openStream(local.channel, local.port.id)) {
+				requeue(local);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Puts the client back to the head of its queue, or closes it if its
+	 * deadline passed meanwhile.
+	 *
+	 * @return <code>false</code> if it was closed
+	 */
+	private boolean requeue(Pending local) {
+		boolean expired;
+		synchronized (pendingLock) {
+			expired = local.expired;
+			if (!expired) {
+				local.port.pending.addFirst(local);
+			}
+		}
+		if (expired) {
+			close(local.channel);
+		}
+		return !expired;
+	}
+
 }
@@ -0,0 +1,455 @@
+package org.fengzh.tools.net.revsever.mux;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.fengzh.tools.net.core.BufferPool;
+import org.fengzh.tools.net.core.ChannelHandler;
+import org.fengzh.tools.net.core.EventLoop;
+import org.fengzh.tools.net.core.TimerWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One control connection carrying many logical streams, so opening a virtual
+ * connection costs one frame instead of a TCP handshake. Every frame is
+ *
+ * <pre>
+ * type (1) | stream id (4) | payload length (4) | payload
+ * </pre>
+ *
+ * Both sides start with a HELLO frame (magic, version, initial window). The
+ * control server opens streams with an OPEN frame carrying the virtual port
+ * id, data flows in DATA frames limited by a per stream window which the
+ * receiver extends with WINDOW frames once the data is written out. CLOSE
+ * half-closes a stream, RESET aborts it. PING frames are sent while the
+ * connection is quiet and a session without any frame for three intervals is
+ * closed as dead.
+ * <p>
+ * A session and the channels of its streams belong to one {@link EventLoop},
+ * all methods must be called in that loop.
+ */
+public class MuxSession implements ChannelHandler, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(MuxSession.class);
+
+	static final byte HELLO = 0;
+	static final byte OPEN = 1;
+	static final byte DATA = 2;
+	static final byte WINDOW = 3;
+	static final byte CLOSE = 4;
+	static final byte RESET = 5;
+	static final byte PING = 6;
+	static final byte PONG = 7;
+
+	static final int HEADER = 9;
+
+	// header plus payload fill a pooled 16 KB buffer
+	static final int MAX_PAYLOAD = 16 * 1024 - HEADER;
+
+	// "NTMX"
+	private static final int MAGIC = 0x4e544d58;
+
+	private static final int VERSION = 1;
+
+	// queued output at which streams stop reading their sockets
+	private static final int OUT_HIGH = 256 * 1024;
+
+	private static final int OUT_LOW = OUT_HIGH / 4;
+
+	// frames written with one gathering write
+	private static final int GATHER = 16;
+
+	/**
+	 * Session events, called in the session loop.
+	 */
+	public static interface Listener {
+
+		/**
+		 * HELLO frames are exchanged, streams can be opened.
+		 */
+		public void ready(MuxSession session);
+
+		/**
+		 * Stream opened by the peer, the listener connects it with
+		 * {@link MuxStream#connect} or {@link MuxStream#attach} or resets it.
+		 */
+		public void opened(MuxStream stream, int id);
+
+		public void closed(MuxSession session);
+	}
+
+	private final BufferPool pool = BufferPool.getDefault();
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	private final Listener listener;
+	private final Map<Integer, MuxStream> streams = new HashMap<Integer, MuxStream>();
+	private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer[] gather = new ByteBuffer[GATHER];
+	// streams which stopped reading because the output queue is full
+	private final List<MuxStream> blocked = new ArrayList<MuxStream>();
+	private final int localWindow = Integer.getInteger("muxWindow", 256 * 1024);
+	private final long keepaliveMillis = Integer.getInteger("muxKeepalive", 15) * 1000L;
+	private SelectionKey key;
+	private ByteBuffer in;
+	private int queued = 0;
+	private int peerWindow = 0;
+	private int nextStreamId;
+	private boolean ready = false;
+	private boolean closed = false;
+	private long lastReceived;
+	private TimerWheel.Timeout keepaliveTimer;
+
+	/**
+	 * @param opener
+	 *            <code>true</code> for the side opening streams (control
+	 *            server), ids of both sides never collide
+	 */
+	public MuxSession(SocketChannel channel, EventLoop loop, Listener listener, boolean opener) {
+		this.channel = channel;
+		this.loop = loop;
+		this.listener = listener;
+		this.nextStreamId = opener ? 1 : 2;
+	}
+
+	/**
+	 * Registers the connection to the loop and sends HELLO.
+	 */
+	public void start() throws IOException {
+		channel.configureBlocking(false);
+		key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+		in = pool.acquire(HEADER + MAX_PAYLOAD);
+		lastReceived = loop.currentTimeMillis();
+		ByteBuffer hello = ByteBuffer.allocate(HEADER + 9);
+		hello.put(HELLO).putInt(0).putInt(9).putInt(MAGIC).put((byte) VERSION).putInt(localWindow);
+		hello.flip();
+		send(hello);
+		scheduleKeepalive();
+	}
+
+	public EventLoop getLoop() {
+		return loop;
+	}
+
+	public boolean isReady() {
+		return ready && !closed;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return open streams, only exact in the session loop
+	 */
+	public int getStreamCount() {
+		return streams.size();
+	}
+
+	/**
+	 * Opens a stream to the peer for the connected channel.
+	 *
+	 * @param id
+	 *            routing id sent in the OPEN frame
+	 */
+	public MuxStream openStream(SocketChannel local, int id) throws IOException {
+		if (!isReady())
+			throw new IOException("Session is not ready");
+		int streamId = nextStreamId;
+		nextStreamId += 2;
+		MuxStream stream = new MuxStream(this, streamId, peerWindow, localWindow);
+		streams.put(streamId, stream);
+		ByteBuffer open = ByteBuffer.allocate(HEADER + 4);
+		open.put(OPEN).putInt(streamId).putInt(4).putInt(id);
+		open.flip();
+		send(open);
+		stream.attach(local);
+		return stream;
+	}
+
+	public void onProcessing(SelectionKey key) throws IOException {
+		if (key.isWritable()) {
+			flush();
+		}
+		if (key.isValid() && key.isReadable()) {
+			read();
+		}
+	}
+
+	private void read() {
+		int count;
+		try {
+			count = channel.read(in);
+		} catch (IOException e) {
+			logger.debug("read control connection error", e);
+			close();
+			return;
+		}
+		if (count < 0) {
+			logger.info("Control connection is closed by peer: {}", channel.socket());
+			close();
+			return;
+		}
+		if (count > 0) {
+			lastReceived = loop.currentTimeMillis();
+			parse();
+		}
+	}
+
+	private void parse() {
+		in.flip();
+		while (in.remaining() >= HEADER) {
+			int pos = in.position();
+			byte type = in.get(pos);
+			int streamId = in.getInt(pos + 1);
+			int length = in.getInt(pos + 5);
+			if (length < 0 || length > MAX_PAYLOAD) {
+				logger.warn("Invalid frame length {} from {}", length, channel.socket());
+				close();
+				return;
+			}
+			if (in.remaining() < HEADER + length) {
+				break;
+			}
+			ByteBuffer payload = in.duplicate();
+			payload.position(pos + HEADER);
+			payload.limit(pos + HEADER + length);
+			in.position(pos + HEADER + length);
+			dispatch(type, streamId, payload);
+			if (closed) {
+				return;
+			}
+		}
+		in.compact();
+	}
+
+	private void dispatch(byte type, int streamId, ByteBuffer payload) {
+		if (!ready && type != HELLO) {
+			logger.warn("Frame {} before hello from {}", type, channel.socket());
+			close();
+			return;
+		}
+		MuxStream stream;
+		switch (type) {
+		case HELLO:
+			if (payload.remaining() < 9 || payload.getInt() != MAGIC || payload.get() != VERSION) {
+				logger.warn("Invalid hello from {}", channel.socket());
+				close();
+				return;
+			}
+			peerWindow = payload.getInt();
+			ready = true;
+			logger.info("Multiplexed session is ready on {}", channel.socket());
+			listener.ready(this);
+			break;
+		case OPEN:
+			if (streams.containsKey(streamId) || payload.remaining() < 4) {
+				sendReset(streamId);
+				return;
+			}
+			stream = new MuxStream(this, streamId, peerWindow, localWindow);
+			streams.put(streamId, stream);
+			listener.opened(stream, payload.getInt());
+			break;
+		case DATA:
+			stream = streams.get(streamId);
+			// data in flight of a reset stream is dropped
+			if (stream != null) {
+				stream.received(payload);
+			}
+			break;
+		case WINDOW:
+			stream = streams.get(streamId);
+			if (stream != null && payload.remaining() >= 4) {
+				stream.windowUpdate(payload.getInt());
+			}
+			break;
+		case CLOSE:
+			stream = streams.get(streamId);
+			if (stream != null) {
+				stream.remoteClosed();
+			}
+			break;
+		case RESET:
+			stream = streams.get(streamId);
+			if (stream != null) {
+				stream.abort();
+			}
+			break;
+		case PING:
+			ByteBuffer pong = ByteBuffer.allocate(HEADER);
+			pong.put(PONG).putInt(0).putInt(0);
+			pong.flip();
+			send(pong);
+			break;
+		case PONG:
+			break;
+		default:
+			logger.warn("Unknown frame type {} from {}", type, channel.socket());
+			close();
+		}
+	}
+
+	void send(ByteBuffer frame) {
+		if (closed) {
+			pool.release(frame);
+			return;
+		}
+		out.add(frame);
+		queued += frame.remaining();
+		if (out.size() == 1) {
+			flush();
+		}
+	}
+
+	void sendControl(byte type, int streamId) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER);
+		frame.put(type).putInt(streamId).putInt(0);
+		frame.flip();
+		send(frame);
+	}
+
+	void sendWindow(int streamId, int increment) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER + 4);
+		frame.put(WINDOW).putInt(streamId).putInt(4).putInt(increment);
+		frame.flip();
+		send(frame);
+	}
+
+	void sendReset(int streamId) {
+		sendControl(RESET, streamId);
+	}
+
+	private void flush() {
+		try {
+			while (!out.isEmpty()) {
+				int n = 0;
+				for (Iterator<ByteBuffer> it = out.iterator(); it.hasNext() && n < GATHER;) {
+					gather[n++] = it.next();
+				}
+				queued -= (int) channel.write(gather, 0, n);
+				int done = 0;
+				while (!out.isEmpty() && !out.peek().hasRemaining()) {
+					pool.release(out.poll());
+					done++;
+				}
+				if (done < n) {
+					// socket buffer is full
+					break;
+				}
+			}
+		} catch (IOException e) {
+			logger.debug("write control connection error", e);
+			close();
+			return;
+		} finally {
+			for (int i = 0; i < GATHER; i++) {
+				gather[i] = null;
+			}
+		}
+		if (!key.isValid()) {
+			return;
+		}
+		if (out.isEmpty()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} else {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+		if (queued <= OUT_LOW && !blocked.isEmpty()) {
+			List<MuxStream> resumed = new ArrayList<MuxStream>(blocked);
+			blocked.clear();
+			for (MuxStream stream : resumed) {
+				stream.resumeRead();
+			}
+		}
+	}
+
+	boolean isCongested() {
+		return queued >= OUT_HIGH;
+	}
+
+	void block(MuxStream stream) {
+		if (!blocked.contains(stream)) {
+			blocked.add(stream);
+		}
+	}
+
+	void removed(MuxStream stream) {
+		streams.remove(stream.getId());
+		blocked.remove(stream);
+	}
+
+	private void scheduleKeepalive() {
+		if (keepaliveMillis <= 0) {
+			return;
+		}
+		keepaliveTimer = loop.schedule(new Runnable() {
+
+			public void run() {
+				keepaliveTimer = null;
+				checkAlive();
+			}
+		}, keepaliveMillis);
+	}
+
+	private void checkAlive() {
+		if (closed) {
+			return;
+		}
+		long quiet = loop.currentTimeMillis() - lastReceived;
+		if (quiet >= 3 * keepaliveMillis) {
+			logger.warn("Close dead control connection {}, no frame for {} ms", channel.socket(), quiet);
+			close();
+			return;
+		}
+		if (quiet >= keepaliveMillis) {
+			sendControl(PING, 0);
+		}
+		scheduleKeepalive();
+	}
+
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (keepaliveTimer != null) {
+			keepaliveTimer.cancel();
+			keepaliveTimer = null;
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.debug("close error", e);
+		}
+		for (MuxStream stream : new ArrayList<MuxStream>(streams.values())) {
+			stream.abort();
+		}
+		streams.clear();
+		blocked.clear();
+		while (!out.isEmpty()) {
+			pool.release(out.poll());
+		}
+		queued = 0;
+		pool.release(in);
+		in = null;
+		listener.closed(this);
+	}
+
+	@Override
+	public String toString() {
+		return "MuxSession [" + channel.socket() + ", streams=" + streams.size() + ", queued=" + queued + "]";
+	}
+}
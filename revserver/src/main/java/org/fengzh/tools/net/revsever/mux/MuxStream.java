@@ -0,0 +1,341 @@
+package org.fengzh.tools.net.revsever.mux;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import org.fengzh.tools.net.core.BufferPool;
+import org.fengzh.tools.net.core.ChannelHandler;
+import org.fengzh.tools.net.core.TimerWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logical stream of a {@link MuxSession} bridged to a socket channel in the
+ * session loop. Socket data is sent as DATA frames while the peer's window
+ * allows, received data is written to the socket and the window is given back
+ * to the peer once half of it is written. Data received before the channel is
+ * connected is kept, the window bounds it.
+ */
+public class MuxStream implements ChannelHandler {
+
+	private static final Logger logger = LoggerFactory.getLogger(MuxStream.class);
+
+	// DATA frames read from the socket per readiness event
+	private static final int READ_ROUNDS = 4;
+
+	private final BufferPool pool = BufferPool.getDefault();
+	private final MuxSession session;
+	private final int id;
+	private final int localWindow;
+	// bytes the peer still accepts
+	private int sendWindow;
+	// bytes the peer may still send
+	private int receiveWindow;
+	// written to the socket but not given back to the peer yet
+	private int consumed = 0;
+	private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+	private SocketChannel channel;
+	private SelectionKey key;
+	private boolean connected = false;
+	private boolean readSuspended = false;
+	// end of stream read from the socket, CLOSE sent
+	private boolean localClosed = false;
+	// CLOSE received
+	private boolean remoteClosed = false;
+	private boolean closed = false;
+	private TimerWheel.Timeout connectTimer;
+
+	MuxStream(MuxSession session, int id, int sendWindow, int localWindow) {
+		this.session = session;
+		this.id = id;
+		this.sendWindow = sendWindow;
+		this.localWindow = localWindow;
+		this.receiveWindow = localWindow;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public MuxSession getSession() {
+		return session;
+	}
+
+	/**
+	 * Bridges the stream to a connected channel.
+	 */
+	public void attach(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		channel.configureBlocking(false);
+		key = channel.register(session.getLoop().getSelector(), SelectionKey.OP_READ, this);
+		connected();
+	}
+
+	/**
+	 * Connects to the target without blocking, the stream is reset if the
+	 * connect fails or takes longer than the timeout. Does nothing if the
+	 * stream is already closed.
+	 */
+	public void connect(final InetSocketAddress address, int timeoutSeconds) {
+		if (closed) {
+			return;
+		}
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			key = channel.register(session.getLoop().getSelector(), SelectionKey.OP_CONNECT, this);
+			if (channel.connect(address)) {
+				key.interestOps(SelectionKey.OP_READ);
+				connected();
+				return;
+			}
+			connectTimer = session.getLoop().schedule(new Runnable() {
+
+				public void run() {
+					connectTimer = null;
+					logger.info("Connect to {} timeout for stream {}", address, id);
+					reset();
+				}
+			}, timeoutSeconds * 1000L);
+		} catch (IOException e) {
+			logger.warn("Cannot connect to {} for stream {}: {}", new Object[] { address, id, e.toString() });
+			reset();
+		}
+	}
+
+	private void connected() {
+		connected = true;
+		if (!pending.isEmpty()) {
+			writePending();
+		} else if (remoteClosed) {
+			shutdownOutput();
+		}
+	}
+
+	public void onProcessing(SelectionKey key) throws IOException {
+		if (key.isConnectable()) {
+			try {
+				if (!channel.finishConnect()) {
+					return;
+				}
+			} catch (IOException e) {
+				logger.warn("Connect failure for stream {}: {}", id, e.toString());
+				reset();
+				return;
+			}
+			if (connectTimer != null) {
+				connectTimer.cancel();
+				connectTimer = null;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			connected();
+			return;
+		}
+		if (key.isWritable()) {
+			writePending();
+		}
+		if (!closed && key.isValid() && key.isReadable()) {
+			readSocket();
+		}
+	}
+
+	private void readSocket() {
+		for (int round = 0; round < READ_ROUNDS; round++) {
+			if (sendWindow <= 0) {
+				// wait for WINDOW
+				suspendRead();
+				return;
+			}
+			if (session.isCongested()) {
+				suspendRead();
+				session.block(this);
+				return;
+			}
+			int size = Math.min(sendWindow, MuxSession.MAX_PAYLOAD);
+			ByteBuffer frame = pool.acquire(MuxSession.HEADER + size);
+			frame.limit(MuxSession.HEADER + size);
+			frame.position(MuxSession.HEADER);
+			int count;
+			try {
+				count = channel.read(frame);
+			} catch (IOException e) {
+				logger.debug("read stream error", e);
+				pool.release(frame);
+				reset();
+				return;
+			}
+			if (count <= 0) {
+				pool.release(frame);
+				if (count < 0) {
+					localClosed = true;
+					suspendRead();
+					session.sendControl(MuxSession.CLOSE, id);
+					finishIfDone();
+				}
+				return;
+			}
+			frame.put(0, MuxSession.DATA).putInt(1, id).putInt(5, count);
+			frame.flip();
+			sendWindow -= count;
+			session.send(frame);
+			if (count < size) {
+				// socket is drained
+				return;
+			}
+		}
+	}
+
+	void received(ByteBuffer payload) {
+		int length = payload.remaining();
+		if (length > receiveWindow) {
+			logger.warn("Stream {} exceeds its window, {} > {}", new Object[] { id, length, receiveWindow });
+			reset();
+			return;
+		}
+		receiveWindow -= length;
+		if (connected && pending.isEmpty()) {
+			int written;
+			try {
+				written = channel.write(payload);
+			} catch (IOException e) {
+				logger.debug("write stream error", e);
+				reset();
+				return;
+			}
+			credit(written);
+		}
+		if (payload.hasRemaining()) {
+			ByteBuffer copy = pool.acquire(payload.remaining());
+			copy.put(payload);
+			copy.flip();
+			pending.add(copy);
+			if (connected) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	private void writePending() {
+		try {
+			while (!pending.isEmpty()) {
+				ByteBuffer b = pending.peek();
+				credit(channel.write(b));
+				if (b.hasRemaining()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				pool.release(pending.poll());
+			}
+		} catch (IOException e) {
+			logger.debug("write stream error", e);
+			reset();
+			return;
+		}
+		if (key.isValid()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+		if (remoteClosed) {
+			shutdownOutput();
+		}
+	}
+
+	private void credit(int written) {
+		consumed += written;
+		if (consumed >= localWindow / 2 && !remoteClosed) {
+			session.sendWindow(id, consumed);
+			receiveWindow += consumed;
+			consumed = 0;
+		}
+	}
+
+	void windowUpdate(int increment) {
+		sendWindow += increment;
+		if (readSuspended && !localClosed) {
+			resumeRead();
+		}
+	}
+
+	void remoteClosed() {
+		remoteClosed = true;
+		if (connected && pending.isEmpty()) {
+			shutdownOutput();
+		}
+	}
+
+	private void shutdownOutput() {
+		try {
+			channel.shutdownOutput();
+		} catch (IOException e) {
+			logger.debug("shutdown output error", e);
+		}
+		finishIfDone();
+	}
+
+	private void finishIfDone() {
+		if (localClosed && remoteClosed && pending.isEmpty()) {
+			abort();
+		}
+	}
+
+	private void suspendRead() {
+		if (!readSuspended && key.isValid()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			readSuspended = true;
+		}
+	}
+
+	void resumeRead() {
+		if (readSuspended && !closed && !localClosed && key.isValid()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			readSuspended = false;
+		}
+	}
+
+	/**
+	 * Aborts the stream and tells the peer.
+	 */
+	public void reset() {
+		if (closed) {
+			return;
+		}
+		session.sendReset(id);
+		abort();
+	}
+
+	/**
+	 * Closes the channel without telling the peer.
+	 */
+	void abort() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (connectTimer != null) {
+			connectTimer.cancel();
+			connectTimer = null;
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.debug("close error", e);
+			}
+		}
+		while (!pending.isEmpty()) {
+			pool.release(pending.poll());
+		}
+		session.removed(this);
+	}
+
+	@Override
+	public String toString() {
+		return "MuxStream [id=" + id + ", sendWindow=" + sendWindow + ", receiveWindow=" + receiveWindow + "]";
+	}
+}
@@ -2,47 +2,135 @@ package org.fengzh.tools.net.revsever.remote;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.fengzh.tools.net.core.ChannelHandler;
+import org.fengzh.tools.net.core.DnsResolver;
+import org.fengzh.tools.net.core.EventLoop;
+import org.fengzh.tools.net.core.EventLoopGroup;
+import org.fengzh.tools.net.revsever.ControlServer;
+import org.fengzh.tools.net.revsever.mux.MuxSession;
+import org.fengzh.tools.net.revsever.mux.MuxStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Keeps a pool of idle tunnels connected to the control server, each one is
+ * handed over to the {@link RemoteAgentHandler} when the control server
+ * writes the routing id of a virtual connection to it.
+ * <p>
+ * The pool is sized by the tunnel consumption rate: an exponentially weighted
+ * average of the tunnels taken per interval, kept between the minimum and
+ * maximum idle counts. Missing tunnels are connected in parallel.
+ */
 public class RemoteAgent implements ChannelHandler {
 
 	private static final Logger logger = LoggerFactory
 			.getLogger(RemoteAgent.class);
 
+	private static final long POOL_INTERVAL = 1000;
+
+	// weight of the last interval in the consumption rate
+	private static final double RATE_WEIGHT = 0.3;
+
+	// intervals of demand covered by the idle tunnels
+	private static final int POOL_HEADROOM = 2;
+
+	private static final long RETRY_DELAY = 5000;
+
+	// routing id and first client bytes read at once, the rest is forwarded
+	// once the target is connected
+	private static final int FIRST_READ = 4096;
+
+	// int routing id in front of the client bytes
+	private static final int ID_LENGTH = 4;
+
 	private ScheduledExecutorService scheduler;
 
+	private EventLoopGroup eventLoopGroup;
+
+	// loop of control connections
+	private EventLoop controlLoop;
+
 	private InetSocketAddress controlAddress;
 
 	private RemoteAgentHandler processingHandler;
 
-	private Set<SocketChannel> workingChannels = new HashSet<SocketChannel>();
-
+	// fields of the idle pool are only touched in the control loop
 	private Set<SocketChannel> idleChannels = new HashSet<SocketChannel>();
 
-	public static int MAX_IDLE = 4;
+	private int minIdle = Integer.getInteger("tunnelMinIdle", 4);
+
+	private int maxIdle = Integer.getInteger("tunnelMaxIdle", 16);
+
+	// tunnels connecting
+	private int connecting = 0;
+
+	// tunnels taken in the current interval
+	private int consumed = 0;
+
+	// tunnels taken per interval, weighted average
+	private double consumptionRate = 0;
+
+	// no connects before, after a failure
+	private long retryAt = 0;
+
+	private boolean multiplexed = ControlServer.TUNNEL_MUX.equals(System
+			.getProperty("tunnelMode", ControlServer.TUNNEL_SINGLE));
+
+	// control connections of the multiplexed mode
+	private int sessionCount = Integer.getInteger("muxConnections", 2);
+
+	private MuxSession.Listener sessionListener = new MuxSession.Listener() {
+
+		public void ready(MuxSession session) {
+			logger.debug("Multiplexed session to control server is ready");
+		}
+
+		public void opened(MuxStream stream, int id) {
+			try {
+				processingHandler.onStream(stream, stream.getSession()
+						.getLoop(), id);
+			} catch (IOException e) {
+				logger.warn("Cannot process stream", e);
+				stream.reset();
+			}
+		}
+
+		public void closed(MuxSession session) {
+			logger.info("Multiplexed session is closed, reconnecting later");
+			scheduleSession();
+		}
+	};
 
 	public RemoteAgent(RemoteAgentHandler handler) {
 		this.processingHandler = handler;
 	}
 
-	public void start(Selector selector) throws IOException {
+	public void start(EventLoopGroup group) throws IOException {
+		eventLoopGroup = group;
+		controlLoop = group.next();
 		scheduler = Executors.newSingleThreadScheduledExecutor();
-		connect(selector);
+		if (multiplexed) {
+			for (int i = 0; i < sessionCount; i++) {
+				connectSession(eventLoopGroup.next());
+			}
+			return;
+		}
+		controlLoop.execute(new Runnable() {
+
+			public void run() {
+				maintain();
+			}
+		});
 	}
 
 	public void stop() {
@@ -50,17 +138,173 @@ public class RemoteAgent implements ChannelHandler {
 		// TODO
 	}
 
+	public boolean isMultiplexed() {
+		return multiplexed;
+	}
+
+	/**
+	 * @param multiplexed
+	 *            open a few multiplexed sessions instead of one connection
+	 *            per tunnel, system property "tunnelMode" by default
+	 */
+	public void setMultiplexed(boolean multiplexed) {
+		this.multiplexed = multiplexed;
+	}
+
+	private void connectSession(final EventLoop loop) {
+		loop.execute(new Runnable() {
+
+			public void run() {
+				SocketChannel channel = null;
+				try {
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					final SocketChannel sessionChannel = channel;
+					channel.register(loop.getSelector(),
+							SelectionKey.OP_CONNECT, new ChannelHandler() {
+
+								public void onProcessing(SelectionKey key)
+										throws IOException {
+									try {
+										if (!sessionChannel.finishConnect()) {
+											return;
+										}
+									} catch (IOException e) {
+										logger.debug(
+												"Connect to control server failure, and waiting for reconnecting.",
+												e);
+										close(sessionChannel);
+										scheduleSession();
+										return;
+									}
+									// re-registered by the session
+									new MuxSession(sessionChannel, loop,
+											sessionListener, false).start();
+								}
+							});
+					channel.connect(getControlAddress(true));
+				} catch (Exception e) {
+					logger.warn("Start multiplexed session failure on "
+							+ getControlAddress(false), e);
+					close(channel);
+					scheduleSession();
+				}
+			}
+		});
+	}
+
+	private void scheduleSession() {
+		if (scheduler.isShutdown()) {
+			return;
+		}
+		scheduler.schedule(new Runnable() {
+
+			public void run() {
+				connectSession(eventLoopGroup.next());
+			}
+		}, 5, TimeUnit.SECONDS);
+	}
+
 	public int getIdleCount() {
 		return idleChannels.size();
 	}
 
-	public synchronized void connect(Selector selector) throws IOException {
+	public int getConnectingCount() {
+		return connecting;
+	}
+
+	/**
+	 * @return tunnels taken per second, weighted average
+	 */
+	public double getConsumptionRate() {
+		return consumptionRate * 1000 / POOL_INTERVAL;
+	}
+
+	public int getMinIdle() {
+		return minIdle;
+	}
+
+	/**
+	 * @param minIdle
+	 *            idle tunnels kept without demand, system property
+	 *            tunnelMinIdle (4) by default
+	 */
+	public void setMinIdle(int minIdle) {
+		if (minIdle < 0)
+			throw new IllegalArgumentException("Min idle should not be negative.");
+		this.minIdle = minIdle;
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	/**
+	 * @param maxIdle
+	 *            upper bound of idle tunnels, system property tunnelMaxIdle
+	 *            (16) by default. The control server keeps no more than its
+	 *            own inventory size.
+	 */
+	public void setMaxIdle(int maxIdle) {
+		if (maxIdle <= 0)
+			throw new IllegalArgumentException("Max idle should be positive.");
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return idle tunnels the pool aims at
+	 */
+	public int getTargetIdle() {
+		int target = Math.max((int) Math.ceil(consumptionRate * POOL_HEADROOM),
+				consumed);
+		return Math.max(minIdle, Math.min(target, maxIdle));
+	}
+
+	/**
+	 * Updates the consumption rate and refills the pool, every interval.
+	 */
+	private void maintain() {
+		if (scheduler.isShutdown()) {
+			return;
+		}
+		consumptionRate += RATE_WEIGHT * (consumed - consumptionRate);
+		consumed = 0;
+		fill();
+		controlLoop.schedule(new Runnable() {
+
+			public void run() {
+				maintain();
+			}
+		}, POOL_INTERVAL);
+	}
+
+	/**
+	 * Connects the missing tunnels at once.
+	 */
+	private void fill() {
+		if (controlLoop.currentTimeMillis() < retryAt) {
+			return;
+		}
+		int missing = getTargetIdle() - idleChannels.size() - connecting;
+		for (int i = 0; i < missing; i++) {
+			try {
+				connect();
+			} catch (IOException e) {
+				// retried by maintenance
+				retryAt = controlLoop.currentTimeMillis() + RETRY_DELAY;
+				break;
+			}
+		}
+	}
+
+	public void connect() throws IOException {
 		SocketChannel controlChannel = null;
 		try {
 			controlChannel = SocketChannel.open();
 			controlChannel.configureBlocking(false);
-			controlChannel.register(selector, SelectionKey.OP_CONNECT, this);
+			controlLoop.register(controlChannel, SelectionKey.OP_CONNECT, this);
 			controlChannel.connect(getControlAddress(true));
+			connecting++;
 			logger.debug("Remote agent is connecting to control server on {}.",
 					getControlAddress(false));
 		} catch (IOException e) {
@@ -86,67 +330,41 @@ public class RemoteAgent implements ChannelHandler {
 		}
 	}
 
-	private void validateChannels() {
-		for (SocketChannel channel : new HashSet<SocketChannel>(workingChannels)) {
-			if (!channel.isConnected()) {
-				close(channel);
-			}
-			if (!channel.isOpen()) {
-				workingChannels.remove(channel);
-			}
-		}
-		for (SocketChannel channel : new HashSet<SocketChannel>(idleChannels)) {
-			if (!channel.isConnected()) {
-				close(channel);
-			}
-			if (!channel.isOpen()) {
-				idleChannels.remove(channel);
-			}
-		}
-	}
-
 	public void onProcessing(SelectionKey key) throws IOException {
-		final Selector selector = key.selector();
-		SocketChannel controlChannel = (SocketChannel) key.channel();
+		final SocketChannel controlChannel = (SocketChannel) key.channel();
 		if (key.isConnectable()) {
 			try {
-				controlChannel.finishConnect();
-			} catch (ConnectException e) {
-				validateChannels();
+				if (!controlChannel.finishConnect()) {
+					return;
+				}
+			} catch (IOException e) {
 				logger.debug(
 						"Connect to control server failure, and waiting for reconnecting.",
 						e);
-				// connection failure
-				scheduler.schedule(new Runnable() {
-
-					public void run() {
-						try {
-							logger.debug("Start reconnecting");
-							// wake up to enable register (not blocked)
-							selector.wakeup();
-							connect(selector);
-						} catch (IOException e) {
-							logger.error("Connect operation failure", e);
-						}
-					}
-				}, 5, TimeUnit.SECONDS);
+				connecting--;
+				close(controlChannel);
+				// reconnected by maintenance
+				retryAt = controlLoop.currentTimeMillis() + RETRY_DELAY;
 				return;
-			} catch (IOException e) {
-				// other IOE error
-				throw e;
 			}
+			connecting--;
 			// Enable read now
 			logger.info("Control server is connected on {}",
 					controlChannel.socket());
 			idleChannels.add(controlChannel);
-			controlChannel.register(selector, SelectionKey.OP_READ,
+			controlChannel.register(key.selector(), SelectionKey.OP_READ,
 					new ChannelHandler() {
 
+						// routing id, followed by the client bytes sent with
+						// it, kept until the whole id is read
+						private ByteBuffer buf;
+
 						@Override
 						public void onProcessing(SelectionKey key)
 								throws IOException {
-							// handle ping
-							ByteBuffer buf = ByteBuffer.allocate(1);
+							if (buf == null) {
+								buf = ByteBuffer.allocate(FIRST_READ);
+							}
 							int count = -1;
 							try {
 								count = ((SocketChannel) key.channel())
@@ -156,48 +374,48 @@ public class RemoteAgent implements ChannelHandler {
 										e.toString());
 							}
 							if (count == -1) {
+								// closed by control server, not a demand
 								logger.debug("got eof or error in ping state");
-								key.attach(-1);
-								RemoteAgent.this.onProcessing(key);
-							} else if (count == 1) {
-								logger.debug("got ping message");
-								key.channel().register(key.selector(),
-										SelectionKey.OP_READ, RemoteAgent.this);
-								// set channel id (http proxy or ssh, or others)
-								key.attach(new Integer(buf.get(0)));
-								RemoteAgent.this.onProcessing(key);
+								idleChannels.remove(key.channel());
+								close(key.channel());
+							} else if (buf.position() >= ID_LENGTH) {
+								logger.debug("got ping message with {} bytes",
+										buf.position() - ID_LENGTH);
+								buf.flip();
+								// channel id (http proxy or ssh, or others)
+								int id = buf.getInt();
+								linked(key, id, buf.slice());
 							}
 						}
 					});
-		} else if (key.isReadable()) {
-			// move from idle to working channel
-			idleChannels.remove(controlChannel);
-			workingChannels.add(controlChannel);
-			// cancel this key
-			key.cancel();
-			connect(selector);
-			// continue this reading/process
-			processingHandler.onConnected(controlChannel, selector,
-					((Integer) key.attachment()).intValue());
 		}
 	}
 
-	public synchronized void prepareIdleConnections(Selector selector)
-			throws IOException {
-		boolean connecting = false;
-		for (Iterator<SelectionKey> keys = selector.keys().iterator(); keys
-				.hasNext();) {
-			SelectionKey key = keys.next();
-			if ((key.interestOps() & SelectionKey.OP_CONNECT) != 0
-					&& key.isValid()) {
-				connecting = true;
-				break;
+	/**
+	 * Hands the tunnel taken by a virtual connection over to the next loop,
+	 * which starts connecting the target with the payload kept for it.
+	 */
+	private void linked(SelectionKey key, final int id,
+			final ByteBuffer payload) {
+		final SocketChannel controlChannel = (SocketChannel) key.channel();
+		idleChannels.remove(controlChannel);
+		// cancel this key
+		key.cancel();
+		consumed++;
+		fill();
+		final EventLoop loop = eventLoopGroup.next();
+		loop.execute(new Runnable() {
+
+			public void run() {
+				try {
+					processingHandler.onConnected(controlChannel, loop, id,
+							payload);
+				} catch (IOException e) {
+					logger.warn("Cannot process remote connection", e);
+					close(controlChannel);
+				}
 			}
-		}
-		int startCount = MAX_IDLE - idleChannels.size();
-		if (startCount > 0 && !connecting) {
-			connect(selector);
-		}
+		});
 	}
 
 	public void setControlAddress(InetSocketAddress controlAddress) {
@@ -206,9 +424,10 @@ public class RemoteAgent implements ChannelHandler {
 
 	public synchronized InetSocketAddress getControlAddress(boolean refreshDns) {
 		if (refreshDns) {
-			InetSocketAddress newAddress = new InetSocketAddress(
-					controlAddress.getHostName(), controlAddress.getPort());
-			if (newAddress.getAddress() != null) {
+			// cache lookup only, the resolver refreshes in background
+			InetSocketAddress newAddress = DnsResolver.getDefault().getCached(
+					controlAddress.getHostString(), controlAddress.getPort());
+			if (!newAddress.isUnresolved()) {
 				controlAddress = newAddress;
 			} else {
 				// unresolved, use the old one
@@ -1,9 +1,26 @@
 package org.fengzh.tools.net.revsever.remote;
 
 import java.io.IOException;
-import java.nio.channels.Selector;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
+import org.fengzh.tools.net.core.EventLoop;
+import org.fengzh.tools.net.revsever.mux.MuxStream;
+
 public interface RemoteAgentHandler {
-    public void onConnected(SocketChannel remoteChannel, Selector selector, int id) throws IOException;
+    /**
+     * Tunnel linked by the control server, called in the loop which keeps it.
+     *
+     * @param payload
+     *            client bytes received with the routing id, to be written to
+     *            the target first, may be empty
+     */
+    public void onConnected(SocketChannel remoteChannel, EventLoop loop, int id, ByteBuffer payload)
+            throws IOException;
+
+    /**
+     * Stream opened by the control server in multiplexed mode, called in the
+     * loop of its session.
+     */
+    public void onStream(MuxStream stream, EventLoop loop, int id) throws IOException;
 }
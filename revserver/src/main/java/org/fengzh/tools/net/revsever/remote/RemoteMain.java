@@ -1,17 +1,22 @@
 package org.fengzh.tools.net.revsever.remote;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import org.fengzh.tools.net.core.ChannelForward;
 import org.fengzh.tools.net.core.ChannelForward.ConnectStatusHandler;
-import org.fengzh.tools.net.core.ChannelHandler;
+import org.fengzh.tools.net.core.ChannelOptions;
+import org.fengzh.tools.net.core.DnsResolver;
+import org.fengzh.tools.net.core.DnsResolver.ResolveHandler;
+import org.fengzh.tools.net.core.EventLoop;
+import org.fengzh.tools.net.core.EventLoopGroup;
+import org.fengzh.tools.net.revsever.mux.MuxStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +34,8 @@ public class RemoteMain {
 		int controlPort = Integer.parseInt(args[1]);
 		final List<String> proxyHosts = new ArrayList<String>();
 		final List<Integer> proxyPorts = new ArrayList<Integer>();
+		final ChannelOptions options = new ChannelOptions();
+		final DnsResolver resolver = DnsResolver.getDefault();
 		for (int i = 2; i < args.length - 1; i += 2) {
 			String proxyHost = args[i];
 			int proxyPort = Integer.parseInt(args[i + 1]);
@@ -38,14 +45,18 @@ public class RemoteMain {
 		RemoteAgent remoteAgent = new RemoteAgent(new RemoteAgentHandler() {
 
 			public void onConnected(SocketChannel remoteChannel,
-					Selector selector, int id) throws IOException {
+					EventLoop loop, int id, ByteBuffer payload)
+					throws IOException {
 				if (id < 0 || id >= proxyHosts.size()) {
 					id = 0;
 				}
 				final String proxyHost = proxyHosts.get(id);
 				final int proxyPort = proxyPorts.get(id);
-				ChannelForward forward = new ChannelForward(remoteChannel);
-				forward.setAddress(new InetSocketAddress(proxyHost, proxyPort));
+				final ChannelForward forward = new ChannelForward(remoteChannel);
+				forward.setOptions(options);
+				if (payload.hasRemaining()) {
+					forward.setFirstData(payload);
+				}
 				forward.setConnectStatusHandler(new ConnectStatusHandler() {
 
 					public void connected(SelectionKey key) {
@@ -58,62 +69,85 @@ public class RemoteMain {
 								proxyPort);
 					}
 				});
-				forward.startForward(selector);
+				// cached after startup, otherwise called back in the loop
+				resolver.resolve(proxyHost, proxyPort, loop,
+						new ResolveHandler() {
+
+							public void resolved(InetSocketAddress address) {
+								if (address.isUnresolved()) {
+									logger.warn("Cannot resolve proxy {}:{}",
+											proxyHost, proxyPort);
+									close(forward);
+									return;
+								}
+								forward.setAddress(address);
+								try {
+									forward.startForward(loop);
+								} catch (IOException e) {
+									logger.warn("Cannot forward to proxy", e);
+									close(forward);
+								}
+							}
+						});
+			}
+
+			public void onStream(final MuxStream stream, EventLoop loop,
+					int id) throws IOException {
+				if (id < 0 || id >= proxyHosts.size()) {
+					id = 0;
+				}
+				final String proxyHost = proxyHosts.get(id);
+				final int proxyPort = proxyPorts.get(id);
+				resolver.resolve(proxyHost, proxyPort, loop,
+						new ResolveHandler() {
+
+							public void resolved(InetSocketAddress address) {
+								if (address.isUnresolved()) {
+									logger.warn("Cannot resolve proxy {}:{}",
+											proxyHost, proxyPort);
+									stream.reset();
+									return;
+								}
+								stream.connect(address,
+										Integer.getInteger("connectTimeout", 3));
+							}
+						});
 			}
 		});
-		Selector selector;
+		EventLoopGroup eventLoopGroup;
 		try {
-			selector = Selector.open();
+			eventLoopGroup = new EventLoopGroup("remoteagent");
 		} catch (IOException e) {
 			logger.error("Cannot open selector");
 			return;
 		}
-		remoteAgent.setControlAddress(new InetSocketAddress(controlHost,
-				controlPort));
+		// resolve control and proxy hosts in parallel before any loop starts
+		InetSocketAddress[] addresses = new InetSocketAddress[proxyHosts
+				.size() + 1];
+		addresses[0] = InetSocketAddress.createUnresolved(controlHost,
+				controlPort);
+		for (int i = 0; i < proxyHosts.size(); i++) {
+			addresses[i + 1] = InetSocketAddress.createUnresolved(
+					proxyHosts.get(i), proxyPorts.get(i));
+		}
+		addresses = resolver.resolveAll(addresses);
+		remoteAgent.setControlAddress(addresses[0]);
 		logger.info("Starting remote agent");
 		try {
-			remoteAgent.start(selector);
+			remoteAgent.start(eventLoopGroup);
 		} catch (IOException e) {
 			logger.error("Start remote agent failure", e);
+			eventLoopGroup.close();
+			return;
 		}
-		while (selector.isOpen()) {
-			logger.trace("Selecting events.....");
-			int count;
-			try {
-				count = selector
-						.select(remoteAgent.getIdleCount() < RemoteAgent.MAX_IDLE ? 5 * 1000L
-								: 1 * 60 * 1000L);
-				if (count == 0) {
-					remoteAgent.prepareIdleConnections(selector);
-					continue;
-				}
-			} catch (IOException e) {
-				logger.warn("Selector processing get error", e);
-				continue;
-			}
-			logger.trace("Got selecting events count {}", count);
-			for (Iterator<SelectionKey> keys = selector.selectedKeys()
-					.iterator(); keys.hasNext();) {
-				SelectionKey key = keys.next();
-				keys.remove();
-				if (!key.isValid())
-					continue;
-				Object attachement = key.attachment();
-				if (attachement instanceof ChannelHandler) {
-					ChannelHandler handler = (ChannelHandler) attachement;
-					logger.trace("Processing key ops '{}' with handler [{}]",
-							key.interestOps(), handler);
-					try {
-						handler.onProcessing(key);
-					} catch (IOException e) {
-						logger.error("Onprocess falure", e);
-					}
-				} else {
-					logger.error(
-							"Cannot process key ops '{}' due to attachment is [{}]",
-							key.interestOps(), attachement);
-				}
-			}
+		eventLoopGroup.start();
+	}
+
+	private static void close(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			logger.debug("Close failure: " + closeable, e);
 		}
 	}
 }